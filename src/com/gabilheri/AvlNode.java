@@ -14,6 +14,9 @@ public class AvlNode<K extends Comparable<K>, V extends NodeData> {
     AvlNode<K, V> left; // The left Node on the AvlTree
     AvlNode<K, V> right; // The right Node on the AvlTree
     int height; // Height of this Node
+    int maxCount; // The largest occurrence count in the subtree rooted at this Node
+    int rank; // Rank of this Node, only used by the weak AVL balance policy
+    int hits; // Times this Node was found since the last adaptive rebuild of the tree
 
     /**
      * Default constructor with Key and Value
@@ -130,4 +133,58 @@ public class AvlNode<K extends Comparable<K>, V extends NodeData> {
         this.height = height;
         return this;
     }
+
+    /**
+     * @return The largest occurrence count in the subtree rooted at this Node
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * Sets the largest occurrence count in the subtree rooted at this Node
+     *
+     * @param maxCount The largest occurrence count in the subtree
+     * @return Instance of this Object
+     */
+    public AvlNode setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+        return this;
+    }
+
+    /**
+     * @return The rank of this Node, only used by the weak AVL balance policy
+     */
+    public int getRank() {
+        return rank;
+    }
+
+    /**
+     * Sets the rank of this Node
+     *
+     * @param rank The rank of the Node
+     * @return Instance of this Object
+     */
+    public AvlNode setRank(int rank) {
+        this.rank = rank;
+        return this;
+    }
+
+    /**
+     * @return The times this Node was found since the last adaptive rebuild of the tree
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * Sets the times this Node was found since the last adaptive rebuild of the tree
+     *
+     * @param hits The times the Node was found
+     * @return Instance of this Object
+     */
+    public AvlNode setHits(int hits) {
+        this.hits = hits;
+        return this;
+    }
 }
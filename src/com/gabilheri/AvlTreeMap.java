@@ -1,6 +1,10 @@
 package com.gabilheri;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * Created by Marcus Gabilheri on 4/18/16.
@@ -14,19 +18,51 @@ import java.util.List;
  * The supported operations of this class are:
  * <ul>
  * <li> void insert(K, V);                  Insert K, V </li>
+ * <li> void merge(K, V);                   Insert K, V or merge V into the value already associated with K </li>
  * <li> void remove(K);                     Remove K </li>
  * <li> NodeComparisonWrapper find(K)       Return a NodeWrapper with a Node and it's number of comparisons to find </li>
+ * <li> AvlNode<K, V> lookup(chars, ...);   Return the Node for a CharSequence, byte[] or ByteBuffer slice without creating a key </li>
+ * <li> boolean addOccurrence(chars, int);  Add an occurrence to the Node of a CharSequence if it is in the tree </li>
+ * <li> Finger finger();                    Returns a cursor whose finds and inserts start near the last key it visited </li>
+ * <li> void enableAdaptiveLayout(n);       Rebuilds the tree by query frequency after every n finds </li>
+ * <li> void rebuildByOccurrences();        Rebuilds the tree so the words with the most occurrences are closest to the root </li>
  * <li> Comparable findMin();               Return smallest item </li>
  * <li> Comparable findMax();               Return largest item </li>
  * <li> boolean isEmpty();                  Return true if empty; else false </li>
  * <li> int getHeight();                    Returns the height of this tree, -1 if is empty </li>
+ * <li> int size();                         Returns the number of nodes in this tree </li>
+ * <li> long getRotationCount();            Returns the number of single rotations done so far </li>
+ * <li> TreeStats stats();                  Returns the structural and memory statistics of this tree </li>
  * <li> void makeEmpty();                   Remove all items </li>
  * <li> void printTree();                   Print tree in sorted order </li>
  * <li> void printCount();                  Prints the count of each item in sorted order </li>
  * <li> List<Integer> occurs(K);            Returns the occurrences of that Node in the tree </li>
  * <li> int count(K);                       Returns the number of occurrences of that Node in the tree </li>
  * <li> AvlNode<K, V> replace(K1, K2);      Replaces K1 with K2. If K2 is null then K1 is removed from the Tree </li>
+ * <li> List<AvlNode<K, V>> range(lo, hi);  Returns the nodes with keys between lo and hi in sorted order </li>
+ * <li> List<AvlNode<K, V>> topK(k);        Returns the k nodes with the most occurrences </li>
+ * <li> List<AvlNode<K, V>> fuzzyFind(K, d); Returns the nodes with keys within edit distance d of K </li>
+ * <li> List<AvlNode<K, V>> topK(k, lo, hi); Returns the k nodes with the most occurrences with keys between lo and hi </li>
  * </ul>
+ * <p>
+ * Every node keeps the largest occurrence count of its subtree, so topK only visits the subtrees that can
+ * still hold one of the k most frequent nodes. Occurrences must therefore be added through the tree and not
+ * directly to the NodeData of a node.
+ * <p>
+ * How strictly the tree is balanced is decided by its {@link BalancePolicy}, strict AVL by default.
+ * <p>
+ * fuzzyFind needs the {@link FuzzyIndex} of the keys, which is only kept once enableFuzzyIndex is called.
+ * <p>
+ * lookup and addOccurrence compare the characters given directly against the keys, so they can only be used
+ * when the keys are Strings (or other CharSequences). They do not allocate anything.
+ * <p>
+ * A {@link Finger} keeps the path to the last key it visited, so keys probed or inserted in nearly sorted order
+ * only climb and descend the few levels separating them instead of starting again from the root.
+ * <p>
+ * The adaptive layout gives up the balance of the tree for fewer comparisons on skewed queries: the tree is
+ * rebuilt so every key is at most about log2(W / w) + 1 levels deep, where w is the weight of the key and W the
+ * total weight. Inserts and removes still rebalance their path by the policy, which can move a hot key down
+ * again until the next rebuild.
  *
  * @param <K> Key
  * @param <V> Value
@@ -34,9 +70,34 @@ import java.util.List;
 public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
 
     /**
-     * Constant specifying where we allow inbalance on this tree or not
+     * The policy deciding when a node must be rotated
+     */
+    private final BalancePolicy policy;
+
+    /**
+     * The number of single rotations done so far, a double rotation counts as two
+     */
+    private long rotations;
+
+    /**
+     * Index of the keys by edit distance, null until enableFuzzyIndex is called
+     */
+    private FuzzyIndex<K> fuzzyIndex;
+
+    /**
+     * The number of nodes added or removed and of rotations so far, used by fingers to notice that their path is stale
+     */
+    private int modCount;
+
+    /**
+     * The number of finds between two adaptive rebuilds, 0 if the adaptive layout is not enabled
+     */
+    private int rebuildInterval;
+
+    /**
+     * The number of finds since the last adaptive rebuild
      */
-    private static final int ALLOWED_IMBALANCE = 1;
+    private int findsSinceRebuild;
 
     /**
      * The root of this tree
@@ -47,7 +108,16 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
      * Default Constructor. Creates a tree with a empty root
      */
     public AvlTreeMap() {
-        this(null);
+        this(BalancePolicy.STRICT_AVL);
+    }
+
+    /**
+     * Constructor to create an empty tree with a balance policy
+     *
+     * @param policy The policy deciding when a node must be rotated
+     */
+    public AvlTreeMap(BalancePolicy policy) {
+        this.policy = policy;
     }
 
     /**
@@ -56,6 +126,7 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
      * @param root The root of the tree
      */
     public AvlTreeMap(AvlNode<K, V> root) {
+        this.policy = BalancePolicy.STRICT_AVL;
         this.root = root;
     }
 
@@ -67,7 +138,9 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
      * @param position The position of the Node
      */
     public void insert(K key, V value, int position) {
-        root = insert(key, value, position, root);
+        if (!addToExisting(key, null, position)) {
+            root = insert(key, value, position, root);
+        }
     }
 
     /**
@@ -77,7 +150,7 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
      * @param value The value of the Node
      */
     public void insert(K key, V value) {
-        root = insert(key, value, -1, root);
+        insert(key, value, -1);
     }
 
     /**
@@ -93,27 +166,109 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
         if (rootNode == null) {
             AvlNode<K, V> node = new AvlNode<>(key, value);
             addOccurenceToNode(node, position);
+            updateMaxCount(node);
+            keyAdded(key);
             return node;
         }
 
-        if (key.equals(rootNode.getKey())) {
+        int compareResult = key.compareTo(rootNode.getKey());
+
+        if (compareResult < 0) {
+            rootNode.setLeft(insert(key, value, position, rootNode.getLeft()));
+        } else if (compareResult > 0) {
+            rootNode.setRight(insert(key, value, position, rootNode.getRight()));
+        } else {
             addOccurenceToNode(rootNode, position);
+            return rootNode;
+        }
+
+        return balance(rootNode);
+    }
+
+    /**
+     * Inserts a node into the tree or, if the key is already in the tree, merges the value into
+     * the value of the existing node. Useful to add many occurrences of a key at once.
+     *
+     * @param key   The key of the Node
+     * @param value The value of the Node or the occurrences to be merged into it
+     */
+    public void merge(K key, V value) {
+        if (!addToExisting(key, value, -1)) {
+            root = merge(key, value, root);
+        }
+    }
+
+    /**
+     * Internal method to merge a value into the tree
+     *
+     * @param key      The key of the node
+     * @param value    The value of the node
+     * @param rootNode The rootNode of the tree
+     * @return The new root of the subtree after balancing it
+     */
+    @SuppressWarnings("unchecked")
+    private AvlNode<K, V> merge(K key, V value, AvlNode<K, V> rootNode) {
+        if (rootNode == null) {
+            AvlNode<K, V> node = new AvlNode<>(key, value);
+            updateMaxCount(node);
+            keyAdded(key);
+            return node;
         }
 
         int compareResult = key.compareTo(rootNode.getKey());
 
         if (compareResult < 0) {
-            rootNode.setLeft(insert(key, value, position, rootNode.getLeft()));
+            rootNode.setLeft(merge(key, value, rootNode.getLeft()));
         } else if (compareResult > 0) {
-            rootNode.setRight(insert(key, value, position, rootNode.getRight()));
+            rootNode.setRight(merge(key, value, rootNode.getRight()));
+        } else {
+            rootNode.getValue().merge(value);
+            updateMaxCount(rootNode);
+            return rootNode;
         }
 
         return balance(rootNode);
     }
 
+    /**
+     * Adds occurrences to the node of a key already in the tree without balancing anything on the way, since
+     * the shape of the tree did not change. A tree rebuilt by the adaptive layout is not balanced, and balancing
+     * it would rotate the keys that were moved up back down.
+     *
+     * @param key      The key of the node
+     * @param value    The value to be merged into the node, null to add the position instead
+     * @param position The position to be added when value is null, nothing is added if -1
+     * @return True if the key was found, false if it is not in the tree and nothing was done
+     */
+    @SuppressWarnings("unchecked")
+    private boolean addToExisting(K key, V value, int position) {
+        AvlNode<K, V> node = find(key, root).getNode();
+        if (node == null) {
+            return false;
+        }
+
+        if (value != null) {
+            node.getValue().merge(value);
+            updateMaxCount(node);
+        } else {
+            addOccurenceToNode(node, position);
+        }
+
+        // Only the largest counts of the ancestors can change
+        AvlNode<K, V> ancestor = root;
+        while (ancestor != node) {
+            ancestor.setMaxCount(Math.max(ancestor.getMaxCount(), node.getMaxCount()));
+            ancestor = key.compareTo(ancestor.getKey()) < 0 ? ancestor.getLeft() : ancestor.getRight();
+        }
+        return true;
+    }
+
     /**
      * Convenience methot to add a occurence position to a Node
      * It first checks if the position is not -1 and then adds the occurrence to such node
+     * <p>
+     * Only the largest count of the node itself is updated, the ancestors of the node are updated when
+     * the insert that called this method balances its way back to the root.
      *
      * @param node     The node to which the occurrence will be added
      * @param position The position to add to the occurrence list
@@ -121,6 +276,7 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
     public void addOccurenceToNode(AvlNode<K, V> node, int position) {
         if (position != -1) {
             node.getValue().addOccurrence(position);
+            node.setMaxCount(Math.max(node.getMaxCount(), node.getValue().getCount()));
         }
     }
 
@@ -133,13 +289,15 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
             return null;
         }
 
-        if (height(node.getLeft()) - height(node.getRight()) > ALLOWED_IMBALANCE) {
+        if (policy.isRankBalanced()) {
+            node = balanceRank(node);
+        } else if (height(node.getLeft()) - height(node.getRight()) > policy.getAllowedImbalance()) {
             if (height(node.getLeft().getLeft()) >= height(node.getLeft().getRight())) {
                 node = rotateWithLeftChild(node);
             } else {
                 node = doubleWithLeftChild(node);
             }
-        } else if (height(node.getRight()) - height(node.getLeft()) > ALLOWED_IMBALANCE) {
+        } else if (height(node.getRight()) - height(node.getLeft()) > policy.getAllowedImbalance()) {
             if (height(node.getRight().getRight()) >= height(node.getRight().getLeft())) {
                 node = rotateWithRightChild(node);
             } else {
@@ -148,9 +306,127 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
         }
 
         node.setHeight(Math.max(height(node.getLeft()), height(node.getRight())) + 1);
+        updateMaxCount(node);
         return node;
     }
 
+    /**
+     * Weak AVL rebalancing of a node after one of its subtrees changed by an insert or a remove.
+     * The rank difference of a child is the rank of the node minus the rank of the child, it must be 1 or 2
+     * and leaves must have rank 0. An insert can leave a child with difference 0 and a remove a child with
+     * difference 3, which is fixed here by promoting, demoting or rotating. A promotion or demotion can move
+     * the problem to the parent, which is fixed when the recursion returns to it.
+     *
+     * @param node The node to be balanced
+     * @return The new root of the subtree
+     */
+    private AvlNode<K, V> balanceRank(AvlNode<K, V> node) {
+        int leftDiff = node.getRank() - rank(node.getLeft());
+        int rightDiff = node.getRank() - rank(node.getRight());
+
+        if (leftDiff == 0) {
+            if (rightDiff == 1) {
+                node.setRank(node.getRank() + 1);
+            } else {
+                AvlNode<K, V> child = node.getLeft();
+                if (child.getRank() - rank(child.getRight()) == 2) {
+                    node = rotateWithLeftChild(node);
+                    demote(node.getRight(), 1);
+                } else {
+                    node = doubleWithLeftChild(node);
+                    demote(node, -1);
+                    demote(node.getLeft(), 1);
+                    demote(node.getRight(), 1);
+                }
+            }
+        } else if (rightDiff == 0) {
+            if (leftDiff == 1) {
+                node.setRank(node.getRank() + 1);
+            } else {
+                AvlNode<K, V> child = node.getRight();
+                if (child.getRank() - rank(child.getLeft()) == 2) {
+                    node = rotateWithRightChild(node);
+                    demote(node.getLeft(), 1);
+                } else {
+                    node = doubleWithRightChild(node);
+                    demote(node, -1);
+                    demote(node.getRight(), 1);
+                    demote(node.getLeft(), 1);
+                }
+            }
+        } else if (leftDiff == 3) {
+            AvlNode<K, V> sibling = node.getRight();
+            int innerDiff = sibling.getRank() - rank(sibling.getLeft());
+            int outerDiff = sibling.getRank() - rank(sibling.getRight());
+            if (rightDiff == 2) {
+                demote(node, 1);
+            } else if (innerDiff == 2 && outerDiff == 2) {
+                demote(node, 1);
+                demote(sibling, 1);
+            } else if (outerDiff == 1) {
+                node = rotateWithRightChild(node);
+                demote(node, -1);
+                AvlNode<K, V> old = node.getLeft();
+                demote(old, isLeaf(old) ? 2 : 1);
+            } else {
+                node = doubleWithRightChild(node);
+                demote(node, -2);
+                demote(node.getRight(), 1);
+                demote(node.getLeft(), 2);
+            }
+        } else if (rightDiff == 3) {
+            AvlNode<K, V> sibling = node.getLeft();
+            int innerDiff = sibling.getRank() - rank(sibling.getRight());
+            int outerDiff = sibling.getRank() - rank(sibling.getLeft());
+            if (leftDiff == 2) {
+                demote(node, 1);
+            } else if (innerDiff == 2 && outerDiff == 2) {
+                demote(node, 1);
+                demote(sibling, 1);
+            } else if (outerDiff == 1) {
+                node = rotateWithLeftChild(node);
+                demote(node, -1);
+                AvlNode<K, V> old = node.getRight();
+                demote(old, isLeaf(old) ? 2 : 1);
+            } else {
+                node = doubleWithLeftChild(node);
+                demote(node, -2);
+                demote(node.getLeft(), 1);
+                demote(node.getRight(), 2);
+            }
+        } else if (isLeaf(node) && node.getRank() > 0) {
+            // A leaf left with two 2-children after a remove
+            node.setRank(0);
+        }
+        return node;
+    }
+
+    /**
+     * @param node The node to which we want the rank
+     * @return The rank of the node or -1 if null
+     */
+    private int rank(AvlNode<K, V> node) {
+        return node == null ? -1 : node.getRank();
+    }
+
+    /**
+     * Lowers the rank of a node, a negative amount promotes it
+     *
+     * @param node   The node to be demoted
+     * @param amount How much the rank is lowered
+     */
+    private void demote(AvlNode<K, V> node, int amount) {
+        node.setRank(node.getRank() - amount);
+    }
+
+    /**
+     * @param node The node to be checked
+     * @return True if the node has no children
+     */
+    private boolean isLeaf(AvlNode<K, V> node) {
+        return node.getLeft() == null && node.getRight() == null;
+    }
+
     /**
      * @param node The node to which we want the height
      * @return The height of the node or -1 if null
@@ -159,17 +435,46 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
         return node == null ? -1 : node.getHeight();
     }
 
+    /**
+     * @param node The node to which we want the largest occurrence count of its subtree
+     * @return The largest occurrence count of the subtree or 0 if null
+     */
+    private int maxCount(AvlNode<K, V> node) {
+        return node == null ? 0 : node.getMaxCount();
+    }
+
+    /**
+     * @param node The node to which we want the occurrence count
+     * @return The number of occurrences of the node or 0 if it has no value
+     */
+    private int nodeCount(AvlNode<K, V> node) {
+        return node.getValue() == null ? 0 : node.getValue().getCount();
+    }
+
+    /**
+     * Recomputes the largest occurrence count of a subtree from the node and its children
+     *
+     * @param node The node that roots the subtree
+     */
+    private void updateMaxCount(AvlNode<K, V> node) {
+        node.setMaxCount(Math.max(nodeCount(node), Math.max(maxCount(node.getLeft()), maxCount(node.getRight()))));
+    }
+
     /**
      * Rotate binary tree node with left child.
      * For AVL trees, this is a single rotation for case 1.
      * Update heights, then return new root.
      */
     private AvlNode<K, V> rotateWithLeftChild(AvlNode<K, V> node2) {
+        rotations++;
+        modCount++;
         AvlNode<K, V> node1 = node2.getLeft();
         node2.setLeft(node1.getRight());
         node1.setRight(node2);
         node2.height = Math.max(height(node2.getLeft()), height(node2.getRight())) + 1;
         node1.height = Math.max(height(node1.getLeft()), node2.getHeight()) + 1;
+        updateMaxCount(node2);
+        updateMaxCount(node1);
         return node1;
     }
 
@@ -179,11 +484,15 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
      * Update heights, then return new root.
      */
     private AvlNode<K, V> rotateWithRightChild(AvlNode<K, V> node1) {
+        rotations++;
+        modCount++;
         AvlNode<K, V> node2 = node1.getRight();
         node1.setRight(node2.getLeft());
         node2.setLeft(node1);
         node1.height = Math.max(height(node1.getLeft()), height(node1.getRight())) + 1;
         node2.height = Math.max(height(node2.getRight()), node1.getHeight()) + 1;
+        updateMaxCount(node1);
+        updateMaxCount(node2);
         return node2;
     }
 
@@ -299,14 +608,33 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
         } else if (compareResult > 0) {
             node.setRight(remove(key, node.getRight()));
         } else if (node.getLeft() != null && node.getRight() != null) {
-            node.setKey(findMin(node.getRight()).getKey());
-            node.setRight(remove(node.getKey(), node.getRight()));
+            keyRemoved(key);
+            AvlNode<K, V> successor = findMin(node.getRight());
+            node.setKey(successor.getKey());
+            node.setValue(successor.getValue());
+            node.setRight(removeMin(node.getRight()));
         } else {
+            keyRemoved(key);
             node = (node.getLeft() != null) ? node.getLeft() : node.getRight();
         }
         return balance(node);
     }
 
+    /**
+     * Internal method to remove the smallest node of a subtree.
+     * Used to remove the successor that was moved into a node with two children.
+     *
+     * @param node The node that roots the subtree.
+     * @return The new root of the subtree.
+     */
+    private AvlNode<K, V> removeMin(AvlNode<K, V> node) {
+        if (node.getLeft() == null) {
+            return node.getRight();
+        }
+        node.setLeft(removeMin(node.getLeft()));
+        return balance(node);
+    }
+
     /**
      * Public facing method to find a specific node in the Tree
      *
@@ -315,7 +643,23 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
      * a comparison was done to find such node. -1 if the node is not found
      */
     public NodeComparisonWrapper<K, V> find(K key) {
-        return find(key, root);
+        NodeComparisonWrapper<K, V> wrapper = find(key, root);
+        if (rebuildInterval > 0) {
+            if (wrapper.getNode() != null) {
+                wrapper.getNode().hits++;
+            }
+            if (++findsSinceRebuild >= rebuildInterval) {
+                rebuild(false);
+            }
+        }
+        return wrapper;
+    }
+
+    /**
+     * @return A new finger of this tree, starting at the root
+     */
+    public Finger finger() {
+        return new Finger();
     }
 
     /**
@@ -323,6 +667,160 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
      */
     public void makeEmpty() {
         root = null;
+        modCount++;
+        if (fuzzyIndex != null) {
+            fuzzyIndex.clear();
+        }
+    }
+
+    /**
+     * Starts keeping an index of the keys by edit distance, built from the keys already in the tree.
+     * From then on the index is updated by every insert, merge, remove and replace.
+     */
+    public void enableFuzzyIndex() {
+        if (fuzzyIndex == null) {
+            fuzzyIndex = new FuzzyIndex<>();
+            for (AvlNode<K, V> node : range(null, null)) {
+                fuzzyIndex.add(node.getKey());
+            }
+        }
+    }
+
+    /**
+     * Finds the nodes whose keys are within an edit distance of a key, using the fuzzy index
+     *
+     * @param key         The key to be searched, it does not need to be in the tree
+     * @param maxDistance The largest edit distance allowed
+     * @return The nodes found, closest first
+     * @throws IllegalStateException If enableFuzzyIndex was not called
+     */
+    public List<AvlNode<K, V>> fuzzyFind(K key, int maxDistance) {
+        if (fuzzyIndex == null) {
+            throw new IllegalStateException("The fuzzy index is not enabled");
+        }
+
+        List<AvlNode<K, V>> nodes = new ArrayList<>();
+        for (K match : fuzzyIndex.find(key.toString(), maxDistance)) {
+            nodes.add(find(match, root).getNode());
+        }
+        return nodes;
+    }
+
+    /**
+     * Counts the change for the fingers and updates the fuzzy index, if enabled, after a node was created
+     *
+     * @param key The key of the new node
+     */
+    private void keyAdded(K key) {
+        modCount++;
+        if (fuzzyIndex != null) {
+            fuzzyIndex.add(key);
+        }
+    }
+
+    /**
+     * Counts the change for the fingers and updates the fuzzy index, if enabled, after a key left the tree
+     *
+     * @param key The key removed
+     */
+    private void keyRemoved(K key) {
+        modCount++;
+        if (fuzzyIndex != null) {
+            fuzzyIndex.remove(key);
+        }
+    }
+
+    /**
+     * Starts counting how many times every key is found and rebuilds the tree by those counts after every
+     * rebuildInterval finds, so the most queried keys move toward the root. The counts are halved after every
+     * rebuild so the layout follows changes in the queries.
+     * <p>
+     * Finds update the tree, so they must not run at the same time as each other, and the weak AVL policy can
+     * not be used since the rebuilt tree has no valid ranks.
+     *
+     * @param rebuildInterval The number of finds between two rebuilds
+     */
+    public void enableAdaptiveLayout(int rebuildInterval) {
+        if (rebuildInterval < 1) {
+            throw new IllegalArgumentException("The rebuild interval must be at least 1: " + rebuildInterval);
+        }
+        if (policy.isRankBalanced()) {
+            throw new IllegalStateException("The adaptive layout can not be used with the " + policy + " balance policy");
+        }
+        this.rebuildInterval = rebuildInterval;
+        this.findsSinceRebuild = 0;
+    }
+
+    /**
+     * Rebuilds the tree once so the keys with the most occurrences are closest to the root.
+     * Useful when the queries follow the frequency of the words in the text.
+     *
+     * @throws IllegalStateException If the tree uses the weak AVL policy
+     */
+    public void rebuildByOccurrences() {
+        if (policy.isRankBalanced()) {
+            throw new IllegalStateException("The tree can not be rebuilt with the " + policy + " balance policy");
+        }
+        rebuild(true);
+    }
+
+    /**
+     * Rebuilds the tree so every key is about log2(W / w) + 1 levels deep at most, where w is the weight of the
+     * key and W the total weight. Every weight is 1 plus the occurrence count or the finds of the key, so keys
+     * never found are still at most about log2(W) + 1 levels deep. The nodes are reused, only their links change.
+     *
+     * @param byOccurrences True to weigh the keys by occurrence count, false by the times they were found
+     */
+    @SuppressWarnings("unchecked")
+    private void rebuild(boolean byOccurrences) {
+        List<AvlNode<K, V>> nodes = range(null, null);
+        long[] prefix = new long[nodes.size() + 1];
+        for (int i = 0; i < nodes.size(); i++) {
+            AvlNode<K, V> node = nodes.get(i);
+            prefix[i + 1] = prefix[i] + 1 + (byOccurrences ? nodeCount(node) : node.getHits());
+            node.setHits(node.getHits() / 2);
+        }
+
+        root = build(nodes.toArray(new AvlNode[0]), prefix, 0, nodes.size());
+        findsSinceRebuild = 0;
+        modCount++;
+    }
+
+    /**
+     * Internal method to build a subtree out of a range of nodes in sorted order. The root is the node whose
+     * weight spans the middle of the total weight of the range, which leaves at most half of the weight on
+     * either side of it.
+     *
+     * @param nodes  All the nodes in sorted order
+     * @param prefix The total weight of the nodes before every index
+     * @param lo     The index of the first node of the range
+     * @param hi     The index after the last node of the range
+     * @return The root of the subtree
+     */
+    private AvlNode<K, V> build(AvlNode<K, V>[] nodes, long[] prefix, int lo, int hi) {
+        if (lo >= hi) {
+            return null;
+        }
+
+        // The last node starting at or before the middle of the weight
+        long middle = prefix[lo] + (prefix[hi] - prefix[lo]) / 2;
+        int low = lo;
+        int high = hi - 1;
+        while (low < high) {
+            int index = (low + high + 1) >>> 1;
+            if (prefix[index] <= middle) {
+                low = index;
+            } else {
+                high = index - 1;
+            }
+        }
+
+        AvlNode<K, V> node = nodes[low];
+        node.setLeft(build(nodes, prefix, lo, low));
+        node.setRight(build(nodes, prefix, low + 1, hi));
+        node.setHeight(Math.max(height(node.getLeft()), height(node.getRight())) + 1);
+        updateMaxCount(node);
+        return node;
     }
 
     /**
@@ -332,6 +830,82 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
         return height(root);
     }
 
+    /**
+     * @return The policy deciding when a node of this tree must be rotated
+     */
+    public BalancePolicy getBalancePolicy() {
+        return policy;
+    }
+
+    /**
+     * @return The number of single rotations done so far, a double rotation counts as two
+     */
+    public long getRotationCount() {
+        return rotations;
+    }
+
+    /**
+     * @return The number of nodes in this tree
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Internal method to count the nodes in a subtree
+     *
+     * @param node The node that roots the subtree
+     * @return The number of nodes in the subtree
+     */
+    private int size(AvlNode<K, V> node) {
+        return node == null ? 0 : size(node.getLeft()) + 1 + size(node.getRight());
+    }
+
+    /**
+     * Computes the structural statistics and the estimated memory footprint of this tree in a single traversal
+     *
+     * @return The statistics of this tree
+     */
+    public TreeStats stats() {
+        TreeStats stats = new TreeStats();
+        stats(root, 0, stats);
+        stats.height = height(root);
+        return stats;
+    }
+
+    /**
+     * Internal method to add the statistics of a subtree
+     *
+     * @param node  The node that roots the subtree
+     * @param depth The depth of the node, 0 for the root
+     * @param stats The statistics being computed
+     */
+    private void stats(AvlNode<K, V> node, int depth, TreeStats stats) {
+        if (node == null) {
+            return;
+        }
+
+        stats.nodes++;
+        stats.totalDepth += depth;
+        stats.occurrences += nodeCount(node);
+        stats.balanceFactors.merge(height(node.getLeft()) - height(node.getRight()), 1, Integer::sum);
+
+        stats.nodeBytes += TreeStats.align(TreeStats.OBJECT_HEADER + 4 * TreeStats.REFERENCE + 4 * 4);
+        stats.keyBytes += TreeStats.estimateKey(node.getKey());
+        V value = node.getValue();
+        if (value != null) {
+            stats.dataBytes += value.estimateBytes();
+            stats.occurrenceBytes += value.estimateOccurrenceBytes();
+            // The value of the data is usually the key itself
+            if (value.getValue() != node.getKey()) {
+                stats.keyBytes += TreeStats.estimateKey(value.getValue());
+            }
+        }
+
+        stats(node.getLeft(), depth + 1, stats);
+        stats(node.getRight(), depth + 1, stats);
+    }
+
     /**
      * Internal method to find the smallest key in a subtree.
      *
@@ -392,6 +966,192 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
         return new NodeComparisonWrapper<>(null, -1);
     }
 
+    /**
+     * Finds the node of a key given as characters, without creating a key object
+     *
+     * @param key        The characters of the key
+     * @param ignoreCase True to lowercase the characters before comparing them. The keys are compared as they are,
+     *                   so this only finds keys that are stored lowercase
+     * @return The node found or null
+     */
+    public AvlNode<K, V> lookup(CharSequence key, boolean ignoreCase) {
+        return lookup(key, 0, key.length(), ignoreCase);
+    }
+
+    /**
+     * Finds the node of a key given as a slice of characters, without creating a key object
+     *
+     * @param chars      The characters holding the key
+     * @param offset     The index of the first character of the key
+     * @param length     The number of characters of the key
+     * @param ignoreCase True to lowercase the characters before comparing them. The keys are compared as they are,
+     *                   so this only finds keys that are stored lowercase
+     * @return The node found or null
+     */
+    public AvlNode<K, V> lookup(CharSequence chars, int offset, int length, boolean ignoreCase) {
+        AvlNode<K, V> node = root;
+        while (node != null) {
+            int compareResult = compare(chars, offset, length, ignoreCase, (CharSequence) node.getKey());
+            if (compareResult < 0) {
+                node = node.getLeft();
+            } else if (compareResult > 0) {
+                node = node.getRight();
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the node of a key given as a slice of Latin-1 (or ASCII) bytes, without creating a key object
+     *
+     * @param bytes      The bytes holding the key
+     * @param offset     The index of the first byte of the key
+     * @param length     The number of bytes of the key
+     * @param ignoreCase True to lowercase the bytes before comparing them. The keys are compared as they are,
+     *                   so this only finds keys that are stored lowercase
+     * @return The node found or null
+     */
+    public AvlNode<K, V> lookup(byte[] bytes, int offset, int length, boolean ignoreCase) {
+        AvlNode<K, V> node = root;
+        while (node != null) {
+            int compareResult = compare(bytes, offset, length, ignoreCase, (CharSequence) node.getKey());
+            if (compareResult < 0) {
+                node = node.getLeft();
+            } else if (compareResult > 0) {
+                node = node.getRight();
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the node of a key given as a slice of Latin-1 (or ASCII) bytes in a buffer, without creating a key
+     * object. The position of the buffer is not changed
+     *
+     * @param buffer     The buffer holding the key
+     * @param offset     The absolute index of the first byte of the key
+     * @param length     The number of bytes of the key
+     * @param ignoreCase True to lowercase the bytes before comparing them. The keys are compared as they are,
+     *                   so this only finds keys that are stored lowercase
+     * @return The node found or null
+     */
+    public AvlNode<K, V> lookup(ByteBuffer buffer, int offset, int length, boolean ignoreCase) {
+        AvlNode<K, V> node = root;
+        while (node != null) {
+            int compareResult = compare(buffer, offset, length, ignoreCase, (CharSequence) node.getKey());
+            if (compareResult < 0) {
+                node = node.getLeft();
+            } else if (compareResult > 0) {
+                node = node.getRight();
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an occurrence to the node of a key given as characters, if the key is in the tree.
+     * Lets tokenizers skip creating a key and a value for words that were already inserted.
+     *
+     * @param key      The characters of the key
+     * @param position The position to add to the occurrence list
+     * @return True if the key was found, false if it must be inserted
+     */
+    public boolean addOccurrence(CharSequence key, int position) {
+        return addOccurrence(key, position, root);
+    }
+
+    /**
+     * Internal method to add an occurrence to the node of a key, updating the largest counts on the way back
+     *
+     * @param key      The characters of the key
+     * @param position The position to add to the occurrence list
+     * @param node     The node that roots the subtree
+     * @return True if the key was found
+     */
+    private boolean addOccurrence(CharSequence key, int position, AvlNode<K, V> node) {
+        if (node == null) {
+            return false;
+        }
+
+        int compareResult = compare(key, 0, key.length(), false, (CharSequence) node.getKey());
+        if (compareResult == 0) {
+            addOccurenceToNode(node, position);
+            return true;
+        }
+
+        boolean found = addOccurrence(key, position, compareResult < 0 ? node.getLeft() : node.getRight());
+        if (found) {
+            updateMaxCount(node);
+        }
+        return found;
+    }
+
+    /**
+     * Compares a slice of characters with a key the same way String.compareTo does
+     *
+     * @return A negative number, zero or a positive number if the slice is smaller, equal or larger than the key
+     */
+    private static int compare(CharSequence chars, int offset, int length, boolean ignoreCase, CharSequence key) {
+        int common = Math.min(length, key.length());
+        for (int i = 0; i < common; i++) {
+            char c = chars.charAt(offset + i);
+            if (ignoreCase) {
+                c = Character.toLowerCase(c);
+            }
+            char k = key.charAt(i);
+            if (c != k) {
+                return c - k;
+            }
+        }
+        return length - key.length();
+    }
+
+    /**
+     * Compares a slice of Latin-1 bytes with a key the same way String.compareTo does
+     *
+     * @return A negative number, zero or a positive number if the slice is smaller, equal or larger than the key
+     */
+    private static int compare(byte[] bytes, int offset, int length, boolean ignoreCase, CharSequence key) {
+        int common = Math.min(length, key.length());
+        for (int i = 0; i < common; i++) {
+            char c = (char) (bytes[offset + i] & 0xFF);
+            if (ignoreCase) {
+                c = Character.toLowerCase(c);
+            }
+            char k = key.charAt(i);
+            if (c != k) {
+                return c - k;
+            }
+        }
+        return length - key.length();
+    }
+
+    /**
+     * Compares a slice of Latin-1 bytes in a buffer with a key the same way String.compareTo does
+     *
+     * @return A negative number, zero or a positive number if the slice is smaller, equal or larger than the key
+     */
+    private static int compare(ByteBuffer buffer, int offset, int length, boolean ignoreCase, CharSequence key) {
+        int common = Math.min(length, key.length());
+        for (int i = 0; i < common; i++) {
+            char c = (char) (buffer.get(offset + i) & 0xFF);
+            if (ignoreCase) {
+                c = Character.toLowerCase(c);
+            }
+            char k = key.charAt(i);
+            if (c != k) {
+                return c - k;
+            }
+        }
+        return length - key.length();
+    }
+
     /**
      * @param key The key of the node we need the occurences for
      * @return A list with all the occurences and positions for that node
@@ -428,7 +1188,7 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
      * A newly created node with key2 as its key if the values are swapped
      */
     public AvlNode<K, V> replace(K key1, K key2) {
-        AvlNode<K, V> node = find(key1).getNode();
+        AvlNode<K, V> node = find(key1, root).getNode();
 
         if (node == null) {
             return null;
@@ -439,9 +1199,393 @@ public class AvlTreeMap<K extends Comparable<K>, V extends NodeData> {
             return new AvlNode<>(null, null, null, null);
         }
 
+        // Removing a node with two children moves its successor into it, so keep the value first
+        V value = node.getValue();
         remove(key1);
         remove(key2);
-        node.getValue().setValue(key2);
-        return insert(key2, node.getValue(), -1, root);
+        value.setValue(key2);
+        root = insert(key2, value, -1, root);
+        return find(key2, root).getNode();
+    }
+
+    /**
+     * Returns the nodes whose keys are between lo and hi (inclusive) in sorted order
+     *
+     * @param lo The smallest key allowed, null for no lower bound
+     * @param hi The largest key allowed, null for no upper bound
+     * @return A list with the nodes in the range
+     */
+    public List<AvlNode<K, V>> range(K lo, K hi) {
+        List<AvlNode<K, V>> result = new ArrayList<>();
+        range(root, lo, hi, result);
+        return result;
+    }
+
+    /**
+     * Internal method to collect the nodes of a subtree that are in a range, skipping the subtrees outside of it
+     *
+     * @param node   The node that roots the subtree
+     * @param lo     The smallest key allowed, null for no lower bound
+     * @param hi     The largest key allowed, null for no upper bound
+     * @param result The list where the nodes are added in sorted order
+     */
+    private void range(AvlNode<K, V> node, K lo, K hi, List<AvlNode<K, V>> result) {
+        if (node == null) {
+            return;
+        }
+
+        boolean aboveLo = lo == null || node.getKey().compareTo(lo) >= 0;
+        boolean belowHi = hi == null || node.getKey().compareTo(hi) <= 0;
+        if (aboveLo) {
+            range(node.getLeft(), lo, hi, result);
+        }
+        if (aboveLo && belowHi) {
+            result.add(node);
+        }
+        if (belowHi) {
+            range(node.getRight(), lo, hi, result);
+        }
+    }
+
+    /**
+     * Returns the k nodes with the most occurrences, the most frequent first.
+     * Nodes with the same count are returned in no particular order.
+     *
+     * @param k The number of nodes wanted
+     * @return A list with at most k nodes
+     */
+    public List<AvlNode<K, V>> topK(int k) {
+        PriorityQueue<Candidate<K, V>> candidates = new PriorityQueue<>();
+        addSubtree(candidates, root);
+        return topK(k, candidates);
+    }
+
+    /**
+     * Returns the k nodes with the most occurrences whose keys are between lo and hi (inclusive),
+     * the most frequent first. Nodes with the same count are returned in no particular order.
+     *
+     * @param k  The number of nodes wanted
+     * @param lo The smallest key allowed
+     * @param hi The largest key allowed
+     * @return A list with at most k nodes
+     */
+    public List<AvlNode<K, V>> topK(int k, K lo, K hi) {
+        PriorityQueue<Candidate<K, V>> candidates = new PriorityQueue<>();
+        AvlNode<K, V> node = root;
+
+        // Walk down until the paths to lo and hi split, then collect the subtrees fully inside the range
+        while (node != null) {
+            if (node.getKey().compareTo(lo) < 0) {
+                node = node.getRight();
+            } else if (node.getKey().compareTo(hi) > 0) {
+                node = node.getLeft();
+            } else {
+                candidates.add(new Candidate<>(node, nodeCount(node), false));
+                addAtLeast(candidates, node.getLeft(), lo);
+                addAtMost(candidates, node.getRight(), hi);
+                break;
+            }
+        }
+        return topK(k, candidates);
+    }
+
+    /**
+     * Adds to the candidates every node of a subtree with a key greater or equal than lo
+     *
+     * @param candidates The queue of candidates
+     * @param node       The node that roots the subtree
+     * @param lo         The smallest key allowed
+     */
+    private void addAtLeast(PriorityQueue<Candidate<K, V>> candidates, AvlNode<K, V> node, K lo) {
+        while (node != null) {
+            if (node.getKey().compareTo(lo) >= 0) {
+                candidates.add(new Candidate<>(node, nodeCount(node), false));
+                addSubtree(candidates, node.getRight());
+                node = node.getLeft();
+            } else {
+                node = node.getRight();
+            }
+        }
+    }
+
+    /**
+     * Adds to the candidates every node of a subtree with a key smaller or equal than hi
+     *
+     * @param candidates The queue of candidates
+     * @param node       The node that roots the subtree
+     * @param hi         The largest key allowed
+     */
+    private void addAtMost(PriorityQueue<Candidate<K, V>> candidates, AvlNode<K, V> node, K hi) {
+        while (node != null) {
+            if (node.getKey().compareTo(hi) <= 0) {
+                candidates.add(new Candidate<>(node, nodeCount(node), false));
+                addSubtree(candidates, node.getLeft());
+                node = node.getRight();
+            } else {
+                node = node.getLeft();
+            }
+        }
+    }
+
+    /**
+     * Adds a whole subtree to the candidates
+     *
+     * @param candidates The queue of candidates
+     * @param node       The node that roots the subtree
+     */
+    private void addSubtree(PriorityQueue<Candidate<K, V>> candidates, AvlNode<K, V> node) {
+        if (node != null) {
+            candidates.add(new Candidate<>(node, node.getMaxCount(), true));
+        }
+    }
+
+    /**
+     * Best first search over the candidates. A subtree is only expanded when its largest count is larger than
+     * every other candidate, so subtrees that can not hold one of the k most frequent nodes are never visited.
+     *
+     * @param k          The number of nodes wanted
+     * @param candidates The queue of candidates
+     * @return A list with at most k nodes
+     */
+    private List<AvlNode<K, V>> topK(int k, PriorityQueue<Candidate<K, V>> candidates) {
+        List<AvlNode<K, V>> result = new ArrayList<>();
+        while (result.size() < k && !candidates.isEmpty()) {
+            Candidate<K, V> candidate = candidates.poll();
+            if (!candidate.subtree) {
+                result.add(candidate.node);
+            } else {
+                AvlNode<K, V> node = candidate.node;
+                candidates.add(new Candidate<>(node, nodeCount(node), false));
+                addSubtree(candidates, node.getLeft());
+                addSubtree(candidates, node.getRight());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cursor over the tree that remembers the path from the root to the last key it found or inserted.
+     * <p>
+     * A search first climbs the path until it reaches a node whose subtree can hold the key, checked against
+     * the keys bounding that subtree, and then descends from there. Keys close to the last one are usually in a
+     * small subtree near the bottom of the path, so a sorted sweep of probes or inserts only climbs a constant
+     * number of levels on average instead of descending the whole height for every key. Two neighbouring keys
+     * split by a node high in the tree still pay the climb to that node.
+     * <p>
+     * A finger is not thread safe and starts again from the root whenever a node was added to or removed from
+     * the tree by anyone else.
+     */
+    public class Finger {
+
+        private AvlNode<K, V>[] path;   // The nodes from the root to the last node visited
+        private K[] lower;              // The key every key of the subtree at the same level is larger than, or null
+        private K[] upper;              // The key every key of the subtree at the same level is smaller than, or null
+        private int depth;              // The number of nodes in the path
+        private int lastCompare;        // The comparison of the last key with the last node of the path
+        private int expectedModCount;
+
+        @SuppressWarnings("unchecked")
+        private Finger() {
+            path = (AvlNode<K, V>[]) new AvlNode[16];
+            lower = (K[]) new Comparable[16];
+            upper = (K[]) new Comparable[16];
+            reset();
+        }
+
+        /**
+         * Finds a specific node in the tree starting from the last key visited
+         *
+         * @param key The key of the node to be found
+         * @return A NodeComparisonWrapper object containing the Node that was found or null and the number of
+         * comparisons done to climb to and descend from the subtree holding the key. -1 if the node is not found
+         */
+        public NodeComparisonWrapper<K, V> find(K key) {
+            int comparisons = locate(key);
+            if (depth == 0 || lastCompare != 0) {
+                return new NodeComparisonWrapper<>(null, -1);
+            }
+            return new NodeComparisonWrapper<>(path[depth - 1], comparisons);
+        }
+
+        /**
+         * Inserts a node when position is not important, starting from the last key visited
+         *
+         * @param key   The key of the Node
+         * @param value The value of the Node
+         */
+        public void insert(K key, V value) {
+            insert(key, value, -1);
+        }
+
+        /**
+         * Inserts a node and adds the position to it's list of occurrences, starting from the last key visited.
+         * The tree is rebalanced from the new node up and stops at the first subtree whose height, rank and
+         * largest count did not change, which is where the recursive insert stops changing anything too.
+         *
+         * @param key      The Key of the Node
+         * @param value    The Value of the Node
+         * @param position The position of the Node, -1 if we don't care about it
+         */
+        public void insert(K key, V value, int position) {
+            locate(key);
+            if (depth > 0 && lastCompare == 0) {
+                AvlNode<K, V> node = path[depth - 1];
+                addOccurenceToNode(node, position);
+                // Only the largest counts of the ancestors can change
+                for (int i = depth - 2; i >= 0 && path[i].getMaxCount() < node.getMaxCount(); i--) {
+                    path[i].setMaxCount(node.getMaxCount());
+                }
+                return;
+            }
+
+            AvlNode<K, V> node = new AvlNode<>(key, value);
+            addOccurenceToNode(node, position);
+            updateMaxCount(node);
+            keyAdded(key);
+            if (depth == 0) {
+                root = node;
+                reset();
+                return;
+            }
+
+            if (lastCompare < 0) {
+                path[depth - 1].setLeft(node);
+            } else {
+                path[depth - 1].setRight(node);
+            }
+
+            int level = depth - 1;
+            while (level >= 0) {
+                AvlNode<K, V> old = path[level];
+                int height = old.getHeight();
+                int rank = old.getRank();
+                int maxCount = old.getMaxCount();
+                AvlNode<K, V> balanced = balance(old);
+
+                path[level] = balanced;
+                if (level == 0) {
+                    root = balanced;
+                } else if (path[level - 1].getLeft() == old) {
+                    path[level - 1].setLeft(balanced);
+                } else {
+                    path[level - 1].setRight(balanced);
+                }
+
+                if (balanced == old && balanced.getHeight() == height && balanced.getRank() == rank
+                        && balanced.getMaxCount() == maxCount) {
+                    break;
+                }
+                level--;
+            }
+
+            // The subtrees below the last balanced node may have been rotated, its own key bounds did not change
+            depth = Math.max(level, 0) + 1;
+            lastCompare = 1;
+            expectedModCount = modCount;
+        }
+
+        /**
+         * Moves the finger to the node with the key, or to the node under which the key would be inserted
+         *
+         * @param key The key to be searched
+         * @return The number of comparisons done
+         */
+        private int locate(K key) {
+            if (expectedModCount != modCount) {
+                reset();
+            }
+            if (depth == 0) {
+                lastCompare = 1;
+                return 0;
+            }
+
+            int comparisons = 0;
+            while (depth > 1) {
+                int level = depth - 1;
+                comparisons++;
+                if (lower[level] != null && key.compareTo(lower[level]) <= 0) {
+                    depth--;
+                    continue;
+                }
+                comparisons++;
+                if (upper[level] != null && key.compareTo(upper[level]) >= 0) {
+                    depth--;
+                    continue;
+                }
+                break;
+            }
+
+            AvlNode<K, V> node = path[depth - 1];
+            while (true) {
+                comparisons++;
+                lastCompare = key.compareTo(node.getKey());
+                AvlNode<K, V> child = lastCompare < 0 ? node.getLeft() : node.getRight();
+                if (lastCompare == 0 || child == null) {
+                    return comparisons;
+                }
+
+                int level = depth - 1;
+                if (lastCompare < 0) {
+                    push(child, lower[level], node.getKey());
+                } else {
+                    push(child, node.getKey(), upper[level]);
+                }
+                node = child;
+            }
+        }
+
+        /**
+         * Starts the path again from the root of the tree
+         */
+        private void reset() {
+            depth = 0;
+            if (root != null) {
+                push(root, null, null);
+            }
+            expectedModCount = modCount;
+        }
+
+        /**
+         * Adds a node to the end of the path
+         *
+         * @param node  The node to be added
+         * @param lower The key every key of the subtree is larger than, or null
+         * @param upper The key every key of the subtree is smaller than, or null
+         */
+        private void push(AvlNode<K, V> node, K lower, K upper) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+                this.lower = Arrays.copyOf(this.lower, depth * 2);
+                this.upper = Arrays.copyOf(this.upper, depth * 2);
+            }
+            path[depth] = node;
+            this.lower[depth] = lower;
+            this.upper[depth] = upper;
+            depth++;
+        }
+    }
+
+    /**
+     * A node or a whole subtree waiting to be visited by topK, ordered by its count
+     */
+    private static class Candidate<K extends Comparable<K>, V extends NodeData> implements Comparable<Candidate<K, V>> {
+        AvlNode<K, V> node;
+        int count;          // The count of the node or the largest count of the subtree
+        boolean subtree;    // Whether the whole subtree rooted at node is a candidate or only the node
+
+        Candidate(AvlNode<K, V> node, int count, boolean subtree) {
+            this.node = node;
+            this.count = count;
+            this.subtree = subtree;
+        }
+
+        @Override
+        public int compareTo(Candidate<K, V> other) {
+            // Nodes go before subtrees with the same count, since they can be returned right away
+            if (count != other.count) {
+                return Integer.compare(other.count, count);
+            }
+            return Boolean.compare(subtree, other.subtree);
+        }
     }
 }
@@ -0,0 +1,85 @@
+package com.gabilheri;
+
+/**
+ * The rule used by {@link AvlTreeMap} to decide when a node must be rotated.
+ * <ul>
+ * <li> Strict AVL: the heights of the children of a node differ by at most 1. The default. </li>
+ * <li> Relaxed AVL: the heights of the children of a node differ by at most k. Fewer rotations on writes,
+ * at the cost of a taller tree. </li>
+ * <li> Weak AVL: rank balanced tree where every rank difference is 1 or 2 and leaves have rank 0.
+ * Same shape as strict AVL when there are only inserts, but deletes do at most 2 rotations. </li>
+ * </ul>
+ */
+public class BalancePolicy {
+
+    /**
+     * Strict AVL balance, the heights of the children of a node differ by at most 1
+     */
+    public static final BalancePolicy STRICT_AVL = new BalancePolicy("strict", false, 1);
+
+    /**
+     * Weak AVL (rank balanced) balance
+     */
+    public static final BalancePolicy WEAK_AVL = new BalancePolicy("weak", true, 1);
+
+    private final String name;
+    private final boolean rankBalanced;
+    private final int allowedImbalance;
+
+    private BalancePolicy(String name, boolean rankBalanced, int allowedImbalance) {
+        this.name = name;
+        this.rankBalanced = rankBalanced;
+        this.allowedImbalance = allowedImbalance;
+    }
+
+    /**
+     * @param allowedImbalance The largest difference allowed between the heights of the children of a node
+     * @return A relaxed AVL balance policy
+     */
+    public static BalancePolicy relaxedAvl(int allowedImbalance) {
+        if (allowedImbalance < 1) {
+            throw new IllegalArgumentException("The allowed imbalance must be at least 1: " + allowedImbalance);
+        }
+        return allowedImbalance == 1 ? STRICT_AVL : new BalancePolicy("relaxed:" + allowedImbalance, false, allowedImbalance);
+    }
+
+    /**
+     * @param name The name of a policy: strict, weak or relaxed:&lt;k&gt;
+     * @return The policy with that name or null if the name is not valid
+     */
+    public static BalancePolicy parse(String name) {
+        if (name.equals(STRICT_AVL.name)) {
+            return STRICT_AVL;
+        }
+        if (name.equals(WEAK_AVL.name)) {
+            return WEAK_AVL;
+        }
+        if (name.startsWith("relaxed:")) {
+            try {
+                return relaxedAvl(Integer.parseInt(name.substring("relaxed:".length())));
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return True if nodes are balanced by rank (weak AVL), false if they are balanced by height
+     */
+    public boolean isRankBalanced() {
+        return rankBalanced;
+    }
+
+    /**
+     * @return The largest difference allowed between the heights of the children of a node
+     */
+    public int getAllowedImbalance() {
+        return allowedImbalance;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,397 @@
+package com.gabilheri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Serves the {@link Map} commands over a TCP line protocol on localhost.
+ * <p>
+ * Every line sent by a client is executed as a command and answered with the same line that would be
+ * written to the log file. Clients may pipeline requests: all the complete lines received in one read
+ * are executed in order and their answers are sent back in the same order. The exit command closes
+ * the connection of the client that sent it.
+ * <p>
+ * All the connections are handled by a single selector thread, so a large number of idle or slow clients
+ * does not need a thread each. When the mutation log is enabled the answers of a batch are only sent once
+ * its mutations are durable. The selector thread never waits for the disk: the answers are held back with
+ * the sequence number of the last record logged when the batch ended, and released when the thread forcing
+ * the log wakes the selector up after that record is durable. The batches of all the clients received while
+ * a force is in progress therefore become durable with the next single force.
+ */
+public class CommandServer implements Runnable {
+
+    /**
+     * Maximum number of bytes allowed in a single command line
+     */
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    /**
+     * Number of pending output bytes after which we stop reading new commands from a client until it catches up
+     */
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Milliseconds during which no connection is accepted after an accept failed, for example because the
+     * process ran out of file descriptors. The pending connection stays ready, so retrying at once would spin
+     */
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final int port;
+    private final MutationLog wal;      // The log whose durability answers wait for, null if not enabled
+    private final Set<SelectionKey> waiting = new LinkedHashSet<>(); // Clients with answers held back
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private volatile boolean running = true;
+    private Selector selector;
+    private SelectionKey serverKey;
+    private long acceptPausedUntil;     // Time in milliseconds when accepting is resumed, 0 if not paused
+
+    /**
+     * Constructor for a server whose commands are not logged
+     *
+     * @param port The port on localhost where the server will listen for connections
+     */
+    public CommandServer(int port) {
+        this(port, null);
+    }
+
+    /**
+     * @param port The port on localhost where the server will listen for connections
+     * @param wal  The log of the mutations done by the commands, null if not enabled. It must be started
+     */
+    public CommandServer(int port, MutationLog wal) {
+        this.port = port;
+        this.wal = wal;
+    }
+
+    /**
+     * Opens the server socket. Must be called before {@link #run()}
+     *
+     * @return Instance of this object
+     * @throws IOException If the port can not be bound
+     */
+    public CommandServer open() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
+        if (wal != null) {
+            wal.setDurableListener(selector::wakeup);
+        }
+        return this;
+    }
+
+    /**
+     * Stops the server and closes all the connections
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the selector loop until {@link #stop()} is called
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                if (acceptPausedUntil == 0) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, acceptPausedUntil - System.currentTimeMillis()));
+                    if (System.currentTimeMillis() >= acceptPausedUntil) {
+                        acceptPausedUntil = 0;
+                        serverKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException ex) {
+                        close(key);
+                    }
+                }
+
+                // Send the answers whose mutations became durable since the last time
+                for (SelectionKey key : new ArrayList<>(waiting)) {
+                    try {
+                        release(key);
+                    } catch (IOException ex) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Error: Command server stopped: " + ex.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Accepts a new client and registers it for reads. A failure only affects the client being accepted:
+     * it is logged and accepting pauses for a moment, the server channel is never closed.
+     *
+     * @param key The key of the server channel with a pending connection
+     */
+    private void accept(SelectionKey key) {
+        SocketChannel client = null;
+        try {
+            client = ((ServerSocketChannel) key.channel()).accept();
+            if (client == null) {
+                return;
+            }
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, new Connection());
+        } catch (IOException ex) {
+            System.out.println("Error: Could not accept a connection: " + ex.getMessage());
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            } else {
+                key.interestOps(0);
+                acceptPausedUntil = System.currentTimeMillis() + ACCEPT_RETRY_MILLIS;
+            }
+        }
+    }
+
+    /**
+     * Reads what is available from a client and executes every complete line received
+     *
+     * @param key The key of the client
+     * @throws IOException If the client can not be read
+     */
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        StringBuilder answers = new StringBuilder();
+
+        readBuffer.clear();
+        int read = client.read(readBuffer);
+        if (read == -1) {
+            // Answer whatever is still pending before closing
+            connection.closing = true;
+        }
+        readBuffer.flip();
+
+        while (readBuffer.hasRemaining() && !connection.closing) {
+            byte b = readBuffer.get();
+            if (b != '\n') {
+                if (connection.line.size() >= MAX_LINE_LENGTH) {
+                    answers.append("Error: Command is too long\n");
+                    connection.closing = true;
+                } else {
+                    connection.line.write(b);
+                }
+                continue;
+            }
+
+            String input = connection.takeLine();
+            if (Map.isExitCommand(input)) {
+                connection.closing = true;
+            } else {
+                answers.append(Map.processCommand(input));
+            }
+        }
+
+        // The whole batch is answered once the last record logged so far is durable
+        connection.hold(wal == null ? 0 : wal.getAppendedSequence(), answers.toString());
+        release(key);
+    }
+
+    /**
+     * Moves the answers of a client whose mutations are durable to its output and writes them
+     *
+     * @param key The key of the client
+     * @throws IOException If the client can not be written to
+     */
+    private void release(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            waiting.remove(key);
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+        connection.release(wal == null ? Long.MAX_VALUE : wal.getDurableSequence());
+        if (!connection.held.isEmpty() && wal.hasFailed()) {
+            connection.held.clear();
+            connection.heldBytes = 0;
+            connection.queue("Error: Could not write the mutation log\n");
+            connection.closing = true;
+        }
+
+        if (connection.held.isEmpty()) {
+            waiting.remove(key);
+        } else {
+            waiting.add(key);
+        }
+        write(key);
+    }
+
+    /**
+     * Writes as much of the pending output as the client accepts
+     *
+     * @param key The key of the client
+     * @throws IOException If the client can not be written to
+     */
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        connection.output.flip();
+        client.write(connection.output);
+        connection.output.compact();
+
+        int unsent = connection.output.position();
+        if (unsent == 0 && connection.held.isEmpty() && connection.closing) {
+            close(key);
+            return;
+        }
+
+        // Held answers count against the limit too, but only unsent ones need the socket to be writable
+        int ops = unsent > 0 ? SelectionKey.OP_WRITE : 0;
+        if (!connection.closing && unsent + connection.heldBytes < MAX_PENDING_OUTPUT) {
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Closes the channel of a key without throwing
+     *
+     * @param key The key to be closed
+     */
+    private void close(SelectionKey key) {
+        waiting.remove(key);
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * State kept for every client: the line being read, the answers waiting for the log and the answers not
+     * yet sent
+     */
+    private static class Connection {
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE); // Kept in write mode between calls
+        ArrayDeque<Held> held = new ArrayDeque<>();            // In the order of the batches
+        int heldBytes;
+        boolean closing;
+
+        /**
+         * @return The line read so far without the line terminator. The line is reset afterwards
+         */
+        String takeLine() {
+            String input = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            line.reset();
+            return input.endsWith("\r") ? input.substring(0, input.length() - 1) : input;
+        }
+
+        /**
+         * Holds back the answers of a batch until the log is durable up to a sequence number
+         *
+         * @param sequence The sequence number of the last record logged when the batch ended
+         * @param answers  The answers of the batch
+         */
+        void hold(long sequence, String answers) {
+            if (!answers.isEmpty()) {
+                byte[] bytes = answers.getBytes(StandardCharsets.UTF_8);
+                held.add(new Held(sequence, bytes));
+                heldBytes += bytes.length;
+            }
+        }
+
+        /**
+         * Moves the held answers that do not wait for anything beyond a sequence number to the output
+         *
+         * @param durableSequence The sequence number of the last record on disk
+         */
+        void release(long durableSequence) {
+            while (!held.isEmpty() && held.peek().sequence <= durableSequence) {
+                Held answers = held.poll();
+                heldBytes -= answers.bytes.length;
+                queue(answers.bytes);
+            }
+        }
+
+        /**
+         * Appends an answer to the pending output, growing the buffer if needed
+         *
+         * @param answer The answer to be sent to the client
+         */
+        void queue(String answer) {
+            queue(answer.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Appends encoded answers to the pending output, growing the buffer if needed
+         *
+         * @param bytes The answers to be sent to the client
+         */
+        void queue(byte[] bytes) {
+            if (output.remaining() < bytes.length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + bytes.length));
+                output.flip();
+                grown.put(output);
+                output = grown;
+            }
+            output.put(bytes);
+        }
+    }
+
+    /**
+     * Answers of a batch waiting for the log to be durable up to a sequence number
+     */
+    private static class Held {
+        final long sequence;
+        final byte[] bytes;
+
+        Held(long sequence, byte[] bytes) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+}
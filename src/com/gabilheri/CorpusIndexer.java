@@ -0,0 +1,130 @@
+package com.gabilheri;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Indexes every file of a directory into a single tree, one task per file running in parallel.
+ * <p>
+ * Each task reads its whole file and tokenizes it the same way {@link FileFollower} does, collecting the
+ * postings of every word of the file in a local map. The local map is then merged into the shared tree while
+ * holding the lock of the tree, so the lock is taken once per file and only for the unique words of the file.
+ * <p>
+ * Documents are numbered in the sorted order of their paths and positions start at 0 in every document.
+ */
+public class CorpusIndexer {
+
+    private final AvlTreeMap<String, NodeData<String>> tree;
+    private final int threads;
+
+    /**
+     * Default constructor using one thread per processor
+     *
+     * @param tree The tree in which the words will be inserted
+     */
+    public CorpusIndexer(AvlTreeMap<String, NodeData<String>> tree) {
+        this(tree, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param tree    The tree in which the words will be inserted
+     * @param threads The number of files indexed at the same time
+     */
+    public CorpusIndexer(AvlTreeMap<String, NodeData<String>> tree, int threads) {
+        this.tree = tree;
+        this.threads = threads;
+    }
+
+    /**
+     * Indexes all the regular files found under a directory
+     *
+     * @param directory The directory holding the documents
+     * @return The paths of the documents, where the index of each path is its docId
+     * @throws IOException If the directory or one of the files can not be read
+     */
+    public List<String> index(String directory) throws IOException {
+        List<String> documents;
+        try (Stream<Path> paths = Files.walk(Paths.get(directory))) {
+            documents = paths.filter(Files::isRegularFile)
+                    .map(Path::toString)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int docId = 0; docId < documents.size(); docId++) {
+                int id = docId;
+                String document = documents.get(docId);
+                tasks.add(executor.submit(() -> {
+                    indexDocument(id, document);
+                    return null;
+                }));
+            }
+
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing " + directory, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Could not index " + directory, ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return Collections.unmodifiableList(documents);
+    }
+
+    /**
+     * Tokenizes a document and merges its postings into the tree
+     *
+     * @param docId    The id of the document
+     * @param document The path of the document
+     * @throws IOException If the document can not be read
+     */
+    private void indexDocument(int docId, String document) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(document));
+        HashMap<String, PostingsData<String>> words = new HashMap<>();
+        StringBuilder word = new StringBuilder();
+        int position = 0;
+
+        for (int i = 0; i <= bytes.length; i++) {
+            // The end of the document also ends the last word
+            if (i < bytes.length && FileFollower.isWordByte(bytes[i])) {
+                word.append(Character.toLowerCase((char) bytes[i]));
+            } else if (word.length() > 0) {
+                String key = word.toString();
+                word.setLength(0);
+                PostingsData<String> postings = words.get(key);
+                if (postings == null) {
+                    postings = new PostingsData<>(key);
+                    words.put(key, postings);
+                }
+                postings.addPosting(docId, position++);
+            }
+        }
+
+        synchronized (tree) {
+            for (PostingsData<String> postings : words.values()) {
+                tree.merge(postings.getValue(), postings);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.gabilheri;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Follows an append-only text file and incrementally indexes the words appended to it.
+ * <p>
+ * The follower remembers the byte offset of the last byte it has read and the position of the last
+ * word it has inserted, so every poll only reads the newly appended bytes and the occurrence positions
+ * keep counting from where the previous poll stopped.
+ * <p>
+ * Words are tokenized the same way {@link Map} does it: "_" is treated as a separator, everything is
+ * lowercased and only the characters [a-z0-9] are part of a word. A word at the end of the file is only
+ * inserted once a separator is appended after it, since the rest of the word may still be on its way.
+ * <p>
+ * All the inserts are done while holding the lock of the tree, so readers must also synchronize on it.
+ */
+public class FileFollower implements Runnable {
+
+    /**
+     * Default time in milliseconds between two checks of the file
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 500;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String fileName;
+    private final AvlTreeMap<String, NodeData<String>> tree;
+    private final long pollInterval;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final StringBuilder pending = new StringBuilder(); // The word being read when the last poll stopped
+
+    private long offset;        // Byte offset of the next byte to be read from the file
+    private int position;       // The position of the next word inserted into the tree
+    private boolean started;    // Whether the first byte of the file has been read
+    private volatile boolean running = true;
+
+    /**
+     * Default constructor using the default poll interval
+     *
+     * @param fileName The name of the file to be followed
+     * @param tree     The tree in which the words will be inserted
+     */
+    public FileFollower(String fileName, AvlTreeMap<String, NodeData<String>> tree) {
+        this(fileName, tree, DEFAULT_POLL_INTERVAL);
+    }
+
+    /**
+     * @param fileName     The name of the file to be followed
+     * @param tree         The tree in which the words will be inserted
+     * @param pollInterval Time in milliseconds between two checks of the file
+     */
+    public FileFollower(String fileName, AvlTreeMap<String, NodeData<String>> tree, long pollInterval) {
+        this.fileName = fileName;
+        this.tree = tree;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Reads all the bytes appended to the file since the last poll and inserts the complete words into the tree.
+     * <p>
+     * If the file got smaller than the current offset it was truncated, in which case it is read again from the
+     * beginning and the positions keep counting from the last inserted word.
+     *
+     * @return The number of words inserted into the tree
+     * @throws IOException If the file can not be read
+     */
+    public int poll() throws IOException {
+        int inserted = 0;
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            long length = file.length();
+            if (length < offset) {
+                offset = 0;
+                pending.setLength(0);
+            }
+
+            file.seek(offset);
+            while (offset < length) {
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, length - offset));
+                if (read <= 0) {
+                    break;
+                }
+                synchronized (tree) {
+                    for (int i = 0; i < read; i++) {
+                        inserted += consume(buffer[i]);
+                    }
+                }
+                offset += read;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Feeds one byte of the file to the tokenizer
+     *
+     * @param b The byte read from the file
+     * @return The number of words inserted into the tree because of this byte
+     */
+    private int consume(byte b) {
+        boolean first = !started;
+        started = true;
+
+        if (isWordByte(b)) {
+            pending.append(Character.toLowerCase((char) b));
+            return 0;
+        }
+
+        // String.split("\\W+") yields an empty first word when the text starts with a separator
+        if (first || pending.length() > 0) {
+            // Most words are already in the tree, so probe with the characters read before creating a key
+            if (!tree.addOccurrence(pending, position)) {
+                String word = pending.toString();
+                tree.insert(word, new NodeData<>(word), position);
+            }
+            position++;
+            pending.setLength(0);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @param b The byte to be checked
+     * @return True if the byte is part of a word, false if it is a separator
+     */
+    static boolean isWordByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+    }
+
+    /**
+     * @return The byte offset of the next byte to be read from the file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The position that will be given to the next word inserted into the tree
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Stops following the file after the current poll
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Keeps polling the file until {@link #stop()} is called
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                poll();
+            } catch (IOException ex) {
+                System.out.println("Error: Could not read appended data from " + fileName + ": " + ex.getMessage());
+            }
+
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.gabilheri;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * BK-tree over the keys of an {@link AvlTreeMap}, used to find the keys within an edit distance of a word
+ * without comparing the word against every key.
+ * <p>
+ * Every child of a BK-tree node is stored under its edit distance to the node, so a search for the keys within
+ * distance k of a word at distance d from a node only needs to visit the children stored under d - k to d + k.
+ * The distance between two keys is the Levenshtein distance of their toString().
+ * <p>
+ * BK-trees can not remove a node without rebuilding its subtree, so removed keys are only marked as removed
+ * and the whole tree is rebuilt once there are more removed keys than live ones.
+ *
+ * @param <K> Key
+ */
+public class FuzzyIndex<K> {
+
+    private Node<K> root;
+    private int live;       // Number of keys in the index
+    private int removed;    // Number of keys marked as removed
+
+    /**
+     * Adds a key to the index. Nothing is done if the key is already in the index
+     *
+     * @param key The key to be added
+     */
+    public void add(K key) {
+        String word = key.toString();
+        if (root == null) {
+            root = new Node<>(key, word);
+            live++;
+            return;
+        }
+
+        Node<K> node = root;
+        while (true) {
+            int distance = distance(word, node.word);
+            if (distance == 0) {
+                if (node.removed) {
+                    node.removed = false;
+                    removed--;
+                    live++;
+                }
+                return;
+            }
+
+            Node<K> child = node.child(distance);
+            if (child == null) {
+                node.setChild(distance, new Node<>(key, word));
+                live++;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Removes a key from the index. Nothing is done if the key is not in the index
+     *
+     * @param key The key to be removed
+     */
+    public void remove(K key) {
+        String word = key.toString();
+        Node<K> node = root;
+        while (node != null) {
+            int distance = distance(word, node.word);
+            if (distance == 0) {
+                if (!node.removed) {
+                    node.removed = true;
+                    live--;
+                    removed++;
+                    if (removed > live) {
+                        rebuild();
+                    }
+                }
+                return;
+            }
+            node = node.child(distance);
+        }
+    }
+
+    /**
+     * Removes all the keys from the index
+     */
+    public void clear() {
+        root = null;
+        live = 0;
+        removed = 0;
+    }
+
+    /**
+     * @return The number of keys in the index
+     */
+    public int size() {
+        return live;
+    }
+
+    /**
+     * Finds all the keys within an edit distance of a word, closest first
+     *
+     * @param word        The word to be searched
+     * @param maxDistance The largest edit distance allowed
+     * @return The keys within the distance sorted by distance and then by word
+     */
+    public List<K> find(CharSequence word, int maxDistance) {
+        List<Match<K>> matches = new ArrayList<>();
+        Deque<Node<K>> pending = new ArrayDeque<>();
+        if (root != null) {
+            pending.push(root);
+        }
+
+        while (!pending.isEmpty()) {
+            Node<K> node = pending.pop();
+            int distance = distance(word, node.word);
+            if (distance <= maxDistance && !node.removed) {
+                matches.add(new Match<>(node, distance));
+            }
+
+            // Only children in [distance - maxDistance, distance + maxDistance] can be close enough
+            int from = Math.max(1, distance - maxDistance);
+            int to = Math.min(node.children.length - 1, distance + maxDistance);
+            for (int i = from; i <= to; i++) {
+                if (node.children[i] != null) {
+                    pending.push(node.children[i]);
+                }
+            }
+        }
+
+        matches.sort((a, b) -> a.distance != b.distance ? Integer.compare(a.distance, b.distance) : a.node.word.compareTo(b.node.word));
+        List<K> keys = new ArrayList<>(matches.size());
+        for (Match<K> match : matches) {
+            keys.add(match.node.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Rebuilds the index with the keys that were not removed
+     */
+    private void rebuild() {
+        List<K> keys = new ArrayList<>(live);
+        Deque<Node<K>> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node<K> node = pending.pop();
+            if (!node.removed) {
+                keys.add(node.key);
+            }
+            for (Node<K> child : node.children) {
+                if (child != null) {
+                    pending.push(child);
+                }
+            }
+        }
+
+        clear();
+        for (K key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * Levenshtein distance between two words: the number of characters inserted, removed or changed
+     * to turn one word into the other
+     *
+     * @param a The first word
+     * @param b The second word
+     * @return The edit distance between the words
+     */
+    public static int distance(CharSequence a, CharSequence b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int change = previous[j - 1] + (c == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(change, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * A key in the BK-tree with its children indexed by their distance to it
+     */
+    @SuppressWarnings("unchecked")
+    private static class Node<K> {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        final K key;
+        final String word;
+        Node<K>[] children = NO_CHILDREN;
+        boolean removed;
+
+        Node(K key, String word) {
+            this.key = key;
+            this.word = word;
+        }
+
+        Node<K> child(int distance) {
+            return distance < children.length ? children[distance] : null;
+        }
+
+        void setChild(int distance, Node<K> child) {
+            if (distance >= children.length) {
+                children = Arrays.copyOf(children, distance + 1);
+            }
+            children[distance] = child;
+        }
+    }
+
+    /**
+     * A key found by a search and its distance to the searched word
+     */
+    private static class Match<K> {
+        final Node<K> node;
+        final int distance;
+
+        Match(Node<K> node, int distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+}
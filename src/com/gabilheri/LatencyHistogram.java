@@ -0,0 +1,118 @@
+package com.gabilheri;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed relative precision, in the style of HdrHistogram.
+ * <p>
+ * Values below 2048 have a bucket of their own. Larger values fall into log-linear buckets: every power of two
+ * is split into 1024 buckets, so a value is never reported more than 0.1% (3 significant digits) above what
+ * was recorded. Recording is a shift and an array increment, so the histogram can record every command
+ * instead of a sample of them. Values above {@link #MAX_VALUE} are recorded as MAX_VALUE.
+ * <p>
+ * A histogram is not thread safe, every thread records into its own and they are added together at the end.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The largest value that can be recorded, about 18 minutes in nanoseconds
+     */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    private final long[] counts = new long[index(MAX_VALUE) + 1];
+    private long totalCount;
+    private long max;
+    private double sum;
+
+    /**
+     * Records a value
+     *
+     * @param value The latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        counts[index(value)]++;
+        totalCount++;
+        max = Math.max(max, value);
+        sum += value;
+    }
+
+    /**
+     * Adds all the values recorded by another histogram to this one
+     *
+     * @param other The histogram to be added
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    /**
+     * @return The number of values recorded
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return The largest value recorded, 0 if empty
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return The mean of the values recorded, 0 if empty
+     */
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * @param percentile The percentile between 0 and 100
+     * @return The highest value equivalent to the value at the percentile, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param value A value between 0 and MAX_VALUE
+     * @return The index of the bucket of the value
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift the value until it is between HALF_SUB_BUCKETS and SUB_BUCKETS - 1
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) ((value >>> shift) - HALF_SUB_BUCKETS);
+    }
+
+    /**
+     * @param index The index of a bucket
+     * @return The largest value recorded in the bucket
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,567 @@
+package com.gabilheri;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load generator that sends commands through the whole {@link Map#processCommand(String)} path: parsing,
+ * the tree, the date formatting and the writes to the log file. It reports the throughput and the latency
+ * percentiles of the commands.
+ * <p>
+ * The commands either replay a script, cycling through it, or are drawn from a mix of find, occurs, count and
+ * replace over the words of the input file. The words are picked with a Zipfian distribution over their rank by
+ * number of occurrences, so the most frequent words of the file are also the most queried. A replace of the mix
+ * replaces a word with itself, which removes and inserts it again, so the index keeps all of its words during the
+ * run and the latencies describe the index that was loaded instead of one eroded into misses.
+ * <p>
+ * Script lines are commands as typed in by the user. Lines of a log file written by Map, like out.txt, are
+ * turned back into the command that wrote them, so recorded sessions can be replayed as they are.
+ * <p>
+ * With a target rate every client thread sends its share of the commands on a fixed schedule and the latency
+ * of a command is measured from the time it was scheduled to be sent, not from the time it was actually sent.
+ * A stall therefore counts against every command that should have been sent during it, instead of hiding them
+ * (coordinated omission). Without a target rate the threads send commands back to back and the latencies are
+ * only the service times. A thread running behind its schedule keeps sending until it catches up with the end of
+ * the run, so the throughput is measured over the time the recorded commands actually took and reported next to
+ * the target rate.
+ * <p>
+ * With a maximum number of shards the words are loaded into a {@link ShardedAvlTreeMap} instead, and the mix is
+ * run against it directly, without the parsing and the log file of Map, so the throughput of the shards can be
+ * compared for different numbers of threads and shards. One shard is a single tree behind a read/write lock.
+ */
+public class LoadGenerator {
+
+    private static final String SCRIPT_FLAG = "--script";
+    private static final String ZIPF_FLAG = "--zipf";
+    private static final String MIX_FLAG = "--mix";
+    private static final String THREADS_FLAG = "--threads";
+    private static final String RATE_FLAG = "--rate";
+    private static final String DURATION_FLAG = "--duration";
+    private static final String WARMUP_FLAG = "--warmup";
+    private static final String BALANCE_FLAG = "--balance";
+    private static final String ADAPTIVE_FLAG = "--adaptive";
+    private static final String SHARDS_FLAG = "--shards";
+
+    private static final String USAGE = "Usage: java LoadGenerator <filename> <output> [" + SCRIPT_FLAG + " <file> | "
+            + ZIPF_FLAG + " <exponent>] [" + MIX_FLAG + " <command:weight,...>] [" + THREADS_FLAG + " <n>] ["
+            + RATE_FLAG + " <commands per second>] [" + DURATION_FLAG + " <seconds>] [" + WARMUP_FLAG + " <seconds>] ["
+            + BALANCE_FLAG + " <strict|weak|relaxed:k>] [" + ADAPTIVE_FLAG + " <finds>] [" + SHARDS_FLAG + " <max shards>]";
+
+    private static final String DEFAULT_MIX = "find:60,occurs:10,count:25,replace:5";
+    private static final String[] MIX_COMMANDS = {"find", "occurs", "count", "replace"};
+
+    /**
+     * Log lines written by Map.processCommand and the commands that wrote them
+     */
+    private static final Pattern[] LOG_PATTERNS = {
+            Pattern.compile("find: (?:Found|Could not find) '([^']*)'.*"),
+            Pattern.compile("occurs: Occurrences for word (\\S*): .*"),
+            Pattern.compile("occurs: Could not find occurrences for word: (\\S*)"),
+            Pattern.compile("count: The word '([^']*)' appears .*"),
+            Pattern.compile("count: Could not find he word: (\\S*)"),
+            Pattern.compile("replace: replaced word '([^']*)' with '([^']*)'"),
+            Pattern.compile("replace: (?:removed|could not find) word '([^']*)'"),
+            Pattern.compile("fuzzy: (?:Could not find words|Words) within (\\d+) edits of '([^']*)'.*"),
+            Pattern.compile("height: .*"),
+            Pattern.compile("stats: .*"),
+    };
+    private static final String[] LOG_COMMANDS = {
+            "find $1",
+            "occurs $1",
+            "occurs $1",
+            "count $1",
+            "count $1",
+            "replace $1 $2",
+            "replace $1",
+            "fuzzy $2 $1",
+            "height",
+            "stats",
+    };
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            Map.exit(USAGE);
+        }
+
+        String inputFile = args[0];
+        String outFile = args[1];
+
+        String script = null;
+        double exponent = 1.0;
+        String mix = DEFAULT_MIX;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double rate = 0;
+        double duration = 10;
+        double warmup = 0;
+        BalancePolicy policy = BalancePolicy.STRICT_AVL;
+        int rebuildInterval = 0;
+        int maxShards = 0;
+        try {
+            for (int i = 2; i < args.length; i++) {
+                if (i + 1 >= args.length) {
+                    Map.exit(USAGE);
+                }
+                String value = args[++i];
+                switch (args[i - 1]) {
+                    case SCRIPT_FLAG:
+                        script = value;
+                        break;
+                    case ZIPF_FLAG:
+                        exponent = Double.parseDouble(value);
+                        break;
+                    case MIX_FLAG:
+                        mix = value;
+                        break;
+                    case THREADS_FLAG:
+                        threads = Integer.parseInt(value);
+                        break;
+                    case RATE_FLAG:
+                        rate = Double.parseDouble(value);
+                        break;
+                    case DURATION_FLAG:
+                        duration = Double.parseDouble(value);
+                        break;
+                    case WARMUP_FLAG:
+                        warmup = Double.parseDouble(value);
+                        break;
+                    case BALANCE_FLAG:
+                        policy = BalancePolicy.parse(value);
+                        if (policy == null) {
+                            Map.exit("Error: Invalid balance policy: " + value);
+                        }
+                        break;
+                    case ADAPTIVE_FLAG:
+                        rebuildInterval = Map.parseRebuildInterval(value);
+                        break;
+                    case SHARDS_FLAG:
+                        maxShards = Integer.parseInt(value);
+                        if (maxShards < 1) {
+                            Map.exit("Error: Invalid number of shards: " + value);
+                        }
+                        break;
+                    default:
+                        Map.exit(USAGE);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            Map.exit("Error: Invalid number: " + ex.getMessage());
+        }
+        if (threads < 1 || rate < 0 || duration <= 0 || warmup < 0 || exponent <= 0) {
+            Map.exit(USAGE);
+        }
+        if (rebuildInterval > 0 && policy.isRankBalanced()) {
+            Map.exit("Error: " + ADAPTIVE_FLAG + " can not be used with the " + policy + " balance policy");
+        }
+        if (maxShards > 0 && (script != null || rebuildInterval > 0 || policy != BalancePolicy.STRICT_AVL)) {
+            Map.exit("Error: " + SHARDS_FLAG + " only runs a mix against strictly balanced shards");
+        }
+
+        AvlTreeMap<String, NodeData<String>> tree = Map.loadFile(inputFile, outFile, policy);
+        if (tree == null) {
+            Map.exit("Error: Could not find file input file with name: " + inputFile);
+        }
+
+        CommandSource source;
+        if (script != null) {
+            List<String> commands = readScript(script);
+            if (commands.isEmpty()) {
+                Map.exit("Error: Could not find any command in the script: " + script);
+            }
+            source = new ScriptSource(commands);
+        } else {
+            List<String> words = new ArrayList<>();
+            synchronized (tree) {
+                for (AvlNode<String, NodeData<String>> node : tree.topK(tree.size())) {
+                    // The empty word of a text starting with a separator can not be typed in as a command
+                    if (!node.getKey().isEmpty()) {
+                        words.add(node.getKey());
+                    }
+                }
+            }
+            source = new ZipfSource(words.toArray(new String[0]), exponent, mix);
+        }
+
+        if (rebuildInterval > 0) {
+            synchronized (tree) {
+                tree.enableAdaptiveLayout(rebuildInterval);
+            }
+        }
+
+        ShardedAvlTreeMap<String, NodeData<String>> sharded = null;
+        Consumer<String> target = Map::processCommand;
+        if (maxShards > 0) {
+            sharded = new ShardedAvlTreeMap<>(Collections.<String>emptyList(), maxShards,
+                    ShardedAvlTreeMap.DEFAULT_SPLIT_RATE);
+            synchronized (tree) {
+                for (AvlNode<String, NodeData<String>> node : tree.range(null, null)) {
+                    List<Integer> occurrences = new ArrayList<>(node.getValue().getOccurrences());
+                    sharded.insert(node.getKey(), new NodeData<>(node.getKey(), occurrences));
+                }
+            }
+            target = new ShardedTarget(sharded);
+        }
+
+        System.out.println("Loaded " + tree.size() + " words from " + inputFile + ", sending commands from "
+                + (script != null ? script : "a zipf(" + exponent + ") mix of " + mix) + " with " + threads + " threads"
+                + (rate > 0 ? " at " + rate + " commands/s" : " as fast as possible")
+                + (sharded != null ? " to up to " + maxShards + " shards" : ""));
+
+        long started = System.nanoTime();
+        LatencyHistogram histogram = run(source, target, threads, rate, duration, warmup);
+        double elapsed = (System.nanoTime() - started) / 1e9 - warmup;
+        report(histogram, elapsed, duration, rate);
+        if (sharded != null) {
+            System.out.println("Shards: " + sharded.getShardCount());
+            sharded.shutdown();
+        }
+    }
+
+    /**
+     * Sends commands from all the threads to {@link Map#processCommand(String)} and records their latencies
+     *
+     * @param source   Where the commands come from
+     * @param threads  The number of client threads
+     * @param rate     The target number of commands per second of all the threads, 0 for no target
+     * @param duration The seconds during which latencies are recorded
+     * @param warmup   The seconds during which commands are sent before recording
+     * @return The latencies of all the threads in nanoseconds
+     */
+    public static LatencyHistogram run(CommandSource source, int threads, double rate, double duration, double warmup) {
+        return run(source, Map::processCommand, threads, rate, duration, warmup);
+    }
+
+    /**
+     * Sends commands from all the threads and records their latencies
+     *
+     * @param source   Where the commands come from
+     * @param target   Executes a command, called by all the client threads at the same time
+     * @param threads  The number of client threads
+     * @param rate     The target number of commands per second of all the threads, 0 for no target
+     * @param duration The seconds during which latencies are recorded
+     * @param warmup   The seconds during which commands are sent before recording
+     * @return The latencies of all the threads in nanoseconds
+     */
+    public static LatencyHistogram run(CommandSource source, Consumer<String> target, int threads, double rate,
+                                       double duration, double warmup) {
+        long start = System.nanoTime();
+        long recordFrom = start + (long) (warmup * 1e9);
+        long end = recordFrom + (long) (duration * 1e9);
+        // Every thread sends one command per interval, shifted so the threads do not send at the same time
+        long interval = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LatencyHistogram histogram = new LatencyHistogram();
+        try {
+            List<Future<LatencyHistogram>> clients = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                long first = start + (long) (i * 1e9 / Math.max(rate, 1));
+                long seed = start + i;
+                clients.add(executor.submit(() -> client(source, target, new Random(seed), first, interval, recordFrom,
+                        end)));
+            }
+
+            for (Future<LatencyHistogram> client : clients) {
+                histogram.add(client.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("A client failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return histogram;
+    }
+
+    /**
+     * Sends commands from a single thread until the end of the run
+     *
+     * @param source     Where the commands come from
+     * @param target     Executes a command
+     * @param random     The random numbers of this thread
+     * @param first      The time the first command is scheduled, ignored without a target rate
+     * @param interval   The nanoseconds between two commands of this thread, 0 for no target rate
+     * @param recordFrom The time from which latencies are recorded
+     * @param end        The time at which the thread stops sending commands
+     * @return The latencies recorded by this thread
+     */
+    private static LatencyHistogram client(CommandSource source, Consumer<String> target, Random random, long first,
+                                           long interval, long recordFrom, long end) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long scheduled = first;
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (scheduled >= end) {
+                    break;
+                }
+                // A thread running late does not sleep, it sends right away to catch up with its schedule
+                while (now < scheduled) {
+                    LockSupport.parkNanos(scheduled - now);
+                    now = System.nanoTime();
+                }
+            } else {
+                if (now >= end) {
+                    break;
+                }
+                scheduled = now;
+            }
+
+            target.accept(source.next(random));
+            if (scheduled >= recordFrom) {
+                histogram.record(System.nanoTime() - scheduled);
+            }
+            scheduled += interval;
+        }
+        return histogram;
+    }
+
+    /**
+     * Prints the throughput and the latency percentiles of a run
+     *
+     * @param histogram The latencies of all the commands recorded
+     * @param elapsed   The seconds from the start of the recording to the last command done
+     * @param duration  The seconds during which commands were scheduled to be recorded
+     * @param rate      The target rate, 0 for no target
+     */
+    private static void report(LatencyHistogram histogram, double elapsed, double duration, double rate) {
+        System.out.println("Commands: " + histogram.getTotalCount() + " in " + String.format("%.1f", elapsed) + " s ("
+                + String.format("%.1f", histogram.getTotalCount() / elapsed) + " commands/s"
+                + (rate > 0 ? ", target " + rate + " commands/s over " + duration + " s" : "") + ")");
+        System.out.println("Latency" + (rate > 0 ? " from the scheduled send time" : "") + " (ms): "
+                + "mean=" + millis(histogram.getMean())
+                + " p50=" + millis(histogram.getValueAtPercentile(50))
+                + " p90=" + millis(histogram.getValueAtPercentile(90))
+                + " p99=" + millis(histogram.getValueAtPercentile(99))
+                + " p99.9=" + millis(histogram.getValueAtPercentile(99.9))
+                + " max=" + millis(histogram.getMax()));
+    }
+
+    /**
+     * @param nanos A latency in nanoseconds
+     * @return The latency in milliseconds with 3 decimal places
+     */
+    private static String millis(double nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    /**
+     * Reads the commands of a script, skipping empty lines and exit commands
+     *
+     * @param fileName The script holding commands or a log file written by Map
+     * @return The commands of the script in order
+     */
+    public static List<String> readScript(String fileName) {
+        List<String> commands = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(fileName))) {
+                String command = toCommand(line.trim());
+                if (command != null && !Map.isExitCommand(command)) {
+                    commands.add(command);
+                }
+            }
+        } catch (IOException ex) {
+            Map.exit("Error: Could not read the script: " + fileName);
+        }
+        return commands;
+    }
+
+    /**
+     * @param line A line of a script, either a command or a line of a log file written by Map
+     * @return The command of the line or null if the line is empty or an unknown log line
+     */
+    static String toCommand(String line) {
+        int separator = line.indexOf(" ~ ");
+        if (separator == -1) {
+            return line.isEmpty() ? null : line;
+        }
+
+        String logged = line.substring(separator + 3);
+        for (int i = 0; i < LOG_PATTERNS.length; i++) {
+            Matcher matcher = LOG_PATTERNS[i].matcher(logged);
+            if (matcher.matches()) {
+                return matcher.replaceFirst(LOG_COMMANDS[i]).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Where the commands sent by the clients come from. Called by all the client threads at the same time.
+     */
+    public interface CommandSource {
+
+        /**
+         * @param random The random numbers of the calling thread
+         * @return The next command to be sent
+         */
+        String next(Random random);
+    }
+
+    /**
+     * Executes the commands of a mix directly against a sharded map
+     */
+    static class ShardedTarget implements Consumer<String> {
+        private final ShardedAvlTreeMap<String, NodeData<String>> map;
+
+        ShardedTarget(ShardedAvlTreeMap<String, NodeData<String>> map) {
+            this.map = map;
+        }
+
+        @Override
+        public void accept(String command) {
+            String[] inputs = command.split(" ");
+            switch (inputs[0]) {
+                case "find":
+                    map.find(inputs[1]);
+                    break;
+                case "occurs":
+                    map.occurs(inputs[1]);
+                    break;
+                case "count":
+                    map.count(inputs[1]);
+                    break;
+                case "replace":
+                    map.replace(inputs[1], inputs.length > 2 ? inputs[2] : null);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a mix command: " + command);
+            }
+        }
+    }
+
+    /**
+     * Commands of a script, handed out in order to all the threads and started over at the end
+     */
+    static class ScriptSource implements CommandSource {
+        private final List<String> commands;
+        private final AtomicLong sent = new AtomicLong();
+
+        ScriptSource(List<String> commands) {
+            this.commands = commands;
+        }
+
+        @Override
+        public String next(Random random) {
+            return commands.get((int) (sent.getAndIncrement() % commands.size()));
+        }
+    }
+
+    /**
+     * Commands drawn from a weighted mix, with words drawn from a Zipfian distribution over their rank
+     */
+    static class ZipfSource implements CommandSource {
+        private final String[] words;
+        private final double[] wordCdf;     // Probability of drawing a word of rank up to i
+        private final String[] commands;
+        private final double[] commandCdf;  // Probability of drawing a command up to i
+
+        /**
+         * @param words    The words, most frequent first, at least one
+         * @param exponent The exponent of the Zipfian distribution, the probability of rank r is proportional to 1 / r^exponent
+         * @param mix      The commands and their weights as command:weight,...
+         */
+        ZipfSource(String[] words, double exponent, String mix) {
+            if (words.length == 0) {
+                Map.exit("Error: Could not find any word to send in the input file, use " + SCRIPT_FLAG + " instead");
+            }
+            this.words = words;
+            this.wordCdf = new double[words.length];
+            double total = 0;
+            for (int i = 0; i < words.length; i++) {
+                total += 1 / Math.pow(i + 1, exponent);
+                wordCdf[i] = total;
+            }
+            for (int i = 0; i < words.length; i++) {
+                wordCdf[i] /= total;
+            }
+
+            String[] entries = mix.split(",");
+            this.commands = new String[entries.length];
+            this.commandCdf = new double[entries.length];
+            total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] entry = entries[i].split(":");
+                if (entry.length != 2 || !isMixCommand(entry[0])) {
+                    Map.exit("Error: Invalid mix entry: " + entries[i] + ", commands are find, occurs, count and replace");
+                }
+                double weight;
+                try {
+                    weight = Double.parseDouble(entry[1]);
+                } catch (NumberFormatException ex) {
+                    weight = -1;
+                }
+                if (weight < 0) {
+                    Map.exit("Error: Invalid mix weight: " + entries[i]);
+                }
+                commands[i] = entry[0];
+                total += weight;
+                commandCdf[i] = total;
+            }
+            if (total <= 0) {
+                Map.exit("Error: The mix has no weight: " + mix);
+            }
+            for (int i = 0; i < entries.length; i++) {
+                commandCdf[i] /= total;
+            }
+        }
+
+        @Override
+        public String next(Random random) {
+            String command = commands[draw(commandCdf, random)];
+            String word = words[draw(wordCdf, random)];
+            if (command.equals("replace")) {
+                // Replacing a word with another one would delete the first and overwrite the second
+                return command + " " + word + " " + word;
+            }
+            return command + " " + word;
+        }
+
+        /**
+         * @param cdf    A cumulative distribution ending in 1
+         * @param random The random numbers of the calling thread
+         * @return The index drawn from the distribution
+         */
+        private static int draw(double[] cdf, Random random) {
+            double target = random.nextDouble();
+            int low = 0;
+            int high = cdf.length - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cdf[middle] < target) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @param command A command of the mix
+         * @return True if the command takes a single word and can be part of a mix
+         */
+        private static boolean isMixCommand(String command) {
+            for (String mixCommand : MIX_COMMANDS) {
+                if (mixCommand.equals(command)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.gabilheri;
+
+import java.util.List;
+
+/**
+ * AVL tree with long keys, for numeric ids and hashed tokens.
+ * <p>
+ * Same insert, find, remove, occurs and count operations as {@link AvlTreeMap}, but the keys are stored in a
+ * primitive field of the node and compared with plain arithmetic, so there is no Long box per node and no
+ * compareTo call per level. The tree is always strictly AVL balanced and does not keep the largest counts,
+ * the fuzzy index or a rotation count.
+ * <p>
+ * {@link IntAvlTreeMap} is the same tree with int keys.
+ *
+ * @param <V> Value
+ */
+public class LongAvlTreeMap<V extends NodeData> {
+
+    /**
+     * The root of this tree
+     */
+    Node<V> root;
+
+    /**
+     * Inserts a node into the tree and adds the position to it's list of occurrences
+     *
+     * @param key      The Key of the Node
+     * @param value    The Value of the Node, only used if the key is not in the tree yet
+     * @param position The position of the Node, -1 if we don't care about it
+     */
+    public void insert(long key, V value, int position) {
+        root = insert(key, value, position, root);
+    }
+
+    /**
+     * Public facing method to insert a node when position is not important
+     *
+     * @param key   The key of the Node
+     * @param value The value of the Node
+     */
+    public void insert(long key, V value) {
+        root = insert(key, value, -1, root);
+    }
+
+    /**
+     * Internal method to insert a node into the tree
+     *
+     * @param key      The key of the node
+     * @param value    The value of the node
+     * @param position The occurence position. If we don't care about this -1 should be passed
+     * @param node     The node that roots the subtree
+     * @return The new root of the subtree after balancing it
+     */
+    private Node<V> insert(long key, V value, int position, Node<V> node) {
+        if (node == null) {
+            node = new Node<>(key, value);
+            addOccurrence(node, position);
+            return node;
+        }
+
+        if (key < node.key) {
+            node.left = insert(key, value, position, node.left);
+        } else if (key > node.key) {
+            node.right = insert(key, value, position, node.right);
+        } else {
+            addOccurrence(node, position);
+            return node;
+        }
+        return balance(node);
+    }
+
+    /**
+     * @param node     The node to which the occurrence will be added
+     * @param position The position to add to the occurrence list, nothing is added if -1
+     */
+    private void addOccurrence(Node<V> node, int position) {
+        if (position != -1) {
+            node.value.addOccurrence(position);
+        }
+    }
+
+    /**
+     * Remove from the tree. Nothing is done if key is not found.
+     *
+     * @param key The item to remove.
+     */
+    public void remove(long key) {
+        root = remove(key, root);
+    }
+
+    /**
+     * Internal method to remove from a subtree.
+     *
+     * @param key  The item to remove.
+     * @param node The node that roots the subtree.
+     * @return The new root of the subtree.
+     */
+    private Node<V> remove(long key, Node<V> node) {
+        if (node == null) {
+            return null;
+        }
+
+        if (key < node.key) {
+            node.left = remove(key, node.left);
+        } else if (key > node.key) {
+            node.right = remove(key, node.right);
+        } else if (node.left != null && node.right != null) {
+            Node<V> successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            node.key = successor.key;
+            node.value = successor.value;
+            node.right = remove(successor.key, node.right);
+        } else {
+            node = (node.left != null) ? node.left : node.right;
+        }
+        return balance(node);
+    }
+
+    /**
+     * @param key The key of the node to be found
+     * @return The node with the key or null if the key is not in the tree
+     */
+    public Node<V> find(long key) {
+        Node<V> node = root;
+        while (node != null) {
+            if (key < node.key) {
+                node = node.left;
+            } else if (key > node.key) {
+                node = node.right;
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key The key of the node we need the occurences for
+     * @return The list of occurrences of the key or null if the key is not in the tree
+     */
+    @SuppressWarnings("unchecked")
+    public List<Integer> occurs(long key) {
+        Node<V> node = find(key);
+        return node == null ? null : node.value.getOccurrences();
+    }
+
+    /**
+     * @param key The key of the node we need the count for
+     * @return The number of occurrences of the key or -1 if the key is not in the tree
+     */
+    public int count(long key) {
+        Node<V> node = find(key);
+        return node == null ? -1 : node.value.getCount();
+    }
+
+    /**
+     * Test if the tree is logically empty.
+     *
+     * @return true if empty, false otherwise.
+     */
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Make the tree logically empty.
+     */
+    public void makeEmpty() {
+        root = null;
+    }
+
+    /**
+     * @return The height of this tree, -1 if is empty
+     */
+    public int getHeight() {
+        return height(root);
+    }
+
+    /**
+     * @return The number of nodes in this tree
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Internal method to count the nodes in a subtree
+     *
+     * @param node The node that roots the subtree
+     * @return The number of nodes in the subtree
+     */
+    private int size(Node<V> node) {
+        return node == null ? 0 : size(node.left) + 1 + size(node.right);
+    }
+
+    /**
+     * @param node The node to which we want the height
+     * @return The height of the node or -1 if null
+     */
+    private int height(Node<V> node) {
+        return node == null ? -1 : node.height;
+    }
+
+    /**
+     * @param node The node to be balanced
+     * @return The balanced node
+     */
+    private Node<V> balance(Node<V> node) {
+        if (node == null) {
+            return null;
+        }
+
+        if (height(node.left) - height(node.right) > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateWithRightChild(node.left);
+            }
+            node = rotateWithLeftChild(node);
+        } else if (height(node.right) - height(node.left) > 1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateWithLeftChild(node.right);
+            }
+            node = rotateWithRightChild(node);
+        }
+
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+        return node;
+    }
+
+    /**
+     * Rotate binary tree node with left child.
+     * Update heights, then return new root.
+     */
+    private Node<V> rotateWithLeftChild(Node<V> node2) {
+        Node<V> node1 = node2.left;
+        node2.left = node1.right;
+        node1.right = node2;
+        node2.height = Math.max(height(node2.left), height(node2.right)) + 1;
+        node1.height = Math.max(height(node1.left), node2.height) + 1;
+        return node1;
+    }
+
+    /**
+     * Rotate binary tree node with right child.
+     * Update heights, then return new root.
+     */
+    private Node<V> rotateWithRightChild(Node<V> node1) {
+        Node<V> node2 = node1.right;
+        node1.right = node2.left;
+        node2.left = node1;
+        node1.height = Math.max(height(node1.left), height(node1.right)) + 1;
+        node2.height = Math.max(height(node2.right), node1.height) + 1;
+        return node2;
+    }
+
+    /**
+     * A node of the tree holding its key in a primitive field
+     *
+     * @param <V> Value
+     */
+    public static class Node<V extends NodeData> {
+        long key;
+        V value;
+        Node<V> left;
+        Node<V> right;
+        int height;
+
+        Node(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * @return The key of this Node
+         */
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * @return The value of this Node
+         */
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * @return The left child of this Node or null
+         */
+        public Node<V> getLeft() {
+            return left;
+        }
+
+        /**
+         * @return The right child of this Node or null
+         */
+        public Node<V> getRight() {
+            return right;
+        }
+
+        /**
+         * @return The height of this Node, 0 for a leaf
+         */
+        public int getHeight() {
+            return height;
+        }
+    }
+}
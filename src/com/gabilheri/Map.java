@@ -14,6 +14,48 @@ public class Map {
     private static final String OCCURS = "occurs";
     private static final String COUNT = "count";
     private static final String REPLACE = "replace";
+    private static final String TOP = "top";
+    private static final String FUZZY = "fuzzy";
+    private static final String STATS = "stats";
+
+    /**
+     * Edit distance used by the fuzzy command when none is given
+     */
+    private static final int DEFAULT_FUZZY_DISTANCE = 1;
+
+    /**
+     * Optional argument to keep indexing the words appended to the input file
+     */
+    private static final String FOLLOW_FLAG = "--follow";
+
+    /**
+     * Optional argument followed by a port to also serve the commands over TCP on localhost
+     */
+    private static final String SERVER_FLAG = "--server";
+
+    /**
+     * Optional argument followed by a directory where the replaced words are logged so they survive a restart
+     */
+    private static final String WAL_FLAG = "--wal";
+
+    /**
+     * Optional argument to index every file of the directory given instead of the input file
+     */
+    private static final String CORPUS_FLAG = "--corpus";
+
+    /**
+     * Optional argument followed by the balance policy of the tree: strict, weak or relaxed:&lt;k&gt;
+     */
+    private static final String BALANCE_FLAG = "--balance";
+
+    /**
+     * Optional argument followed by the number of finds after which the tree is rebuilt by query frequency
+     */
+    private static final String ADAPTIVE_FLAG = "--adaptive";
+
+    private static final String USAGE = "Usage: java Map <filename> <output> [" + FOLLOW_FLAG + "] ["
+            + SERVER_FLAG + " <port>] [" + WAL_FLAG + " <directory>] [" + CORPUS_FLAG + "] ["
+            + BALANCE_FLAG + " <strict|weak|relaxed:k>] [" + ADAPTIVE_FLAG + " <finds>]";
 
     // The tree holding the data from the file
     private static AvlTreeMap<String, NodeData<String>> tree;
@@ -21,52 +63,125 @@ public class Map {
     // The OutputStream with the handle to the log file
     private static PrintWriter out = null;
 
+    // The log making the mutations of the tree durable, null if not enabled
+    private static MutationLog wal = null;
+
+    // The paths of the indexed documents by docId when indexing a directory, null otherwise
+    private static List<String> documents = null;
+
     public static void main(String[] args) {
 
         // If length of arguments is less than 2 we exit the program with a Usage message
         if (args.length < 2) {
-            exit("Usage: java Map <filename> <output>");
+            exit(USAGE);
         }
 
         String inputFile = args[0];
         String outFile = args[1];
 
-        String fileText = readFile(inputFile);
-        if (fileText == null) {
+        // Parse the optional arguments
+        boolean follow = false;
+        boolean corpus = false;
+        int port = -1;
+        String walDirectory = null;
+        BalancePolicy policy = BalancePolicy.STRICT_AVL;
+        int rebuildInterval = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals(FOLLOW_FLAG)) {
+                follow = true;
+            } else if (args[i].equals(CORPUS_FLAG)) {
+                corpus = true;
+            } else if (args[i].equals(SERVER_FLAG) && i + 1 < args.length) {
+                port = parsePort(args[++i]);
+            } else if (args[i].equals(WAL_FLAG) && i + 1 < args.length) {
+                walDirectory = args[++i];
+            } else if (args[i].equals(BALANCE_FLAG) && i + 1 < args.length) {
+                policy = BalancePolicy.parse(args[++i]);
+                if (policy == null) {
+                    exit("Error: Invalid balance policy: " + args[i]);
+                }
+            } else if (args[i].equals(ADAPTIVE_FLAG) && i + 1 < args.length) {
+                rebuildInterval = parseRebuildInterval(args[++i]);
+            } else {
+                exit(USAGE);
+            }
+        }
+
+        // The rebuilt tree has no valid ranks for the weak AVL policy
+        if (rebuildInterval > 0 && policy.isRankBalanced()) {
+            exit("Error: " + ADAPTIVE_FLAG + " can not be used with the " + policy + " balance policy");
+        }
+
+        // The words appended to a followed file are not logged, so they would be lost or indexed twice on restart
+        if (follow && walDirectory != null) {
+            exit("Error: " + FOLLOW_FLAG + " can not be used together with " + WAL_FLAG);
+        }
+
+        // The postings of a corpus are neither followed nor logged
+        if (corpus && (follow || walDirectory != null)) {
+            exit("Error: " + CORPUS_FLAG + " can not be used together with " + FOLLOW_FLAG + " or " + WAL_FLAG);
+        }
+
+        // When following the file the FileFollower reads it and a corpus is read by the CorpusIndexer,
+        // so we only need to know they exist
+        String fileText = follow || corpus ? null : readFile(inputFile);
+        boolean found = corpus ? new File(inputFile).isDirectory() : follow ? new File(inputFile).isFile() : fileText != null;
+        if (!found) {
             // If file is not found then the program exits with a error message
             exit("Error: Could not find file input file with name: " + inputFile);
         } else {
             System.out.println("Welcome to AVL Tree Map program by Marcus Gabilheri");
             System.out.println("Input file: " + inputFile + " -- Output file: " + outFile);
             System.out.println("Usage: <command> <args (separated by space)>");
-            System.out.println("Available commands: find, occurs, count, replace");
+            System.out.println("Available commands: find, occurs, count, replace, top, fuzzy, stats");
             System.out.println();
 
             out = openOutputStream(outFile); // Opens the outputStream
 
-            // Replaces all the "_" in the file and converts everything to lowercase
-            fileText = fileText.replaceAll("_", " ").toLowerCase();
+            // Create a new empty tree
+            tree = new AvlTreeMap<>(policy);
+
+            if (walDirectory != null) {
+                openMutationLog(walDirectory);
+            }
 
-            // Split the input into words using a Regex
-            String[] words = fileText.split("\\W+");
+            int uniqueCount;
+            if (corpus) {
+                uniqueCount = indexCorpus(inputFile);
+            } else if (follow) {
+                uniqueCount = followFile(inputFile);
+            } else if (wal != null && wal.hasCheckpoint()) {
+                // The checkpoint already holds the whole index
+                uniqueCount = recoverMutationLog();
+            } else {
+                uniqueCount = indexText(fileText);
 
-            // Create a new empty tree
-            tree = new AvlTreeMap<>();
-
-            // Insert all the words in the file into the Tree
-            // Since we are reading the file top to bottom the position of the word in the array
-            // Is also the place where the word has its occurrence
-            for (int i = 0; i < words.length; i++) {
-                String word = words[i];
-                tree.insert(word, new NodeData<>(word), i);
+                if (wal != null) {
+                    uniqueCount = recoverMutationLog();
+                }
+            }
+
+            // Index the words by edit distance for the fuzzy command
+            synchronized (tree) {
+                tree.enableFuzzyIndex();
+                if (rebuildInterval > 0) {
+                    tree.enableAdaptiveLayout(rebuildInterval);
+                }
             }
 
-            int uniqueCount = getUniqueWordsCount(words);
             System.out.println("Finished processing file with " + uniqueCount + " words.");
             System.out.println("The log base 2 of 314 is: " + log2(uniqueCount));
             System.out.println("The height of the tree is: " + tree.getHeight());
+            System.out.println("Balance policy: " + tree.getBalancePolicy() + " -- rotations: " + tree.getRotationCount());
+            if (rebuildInterval > 0) {
+                System.out.println("Adaptive layout: rebuilt by query frequency every " + rebuildInterval + " finds");
+            }
             System.out.println();
 
+            if (port != -1) {
+                startServer(port);
+            }
+
 //            tree.printTree();
 
             // Open a scanner to the keyboard input and wait for a commend
@@ -80,6 +195,195 @@ public class Map {
         }
     }
 
+    /**
+     * Inserts all the words of a text into the tree
+     *
+     * @param fileText The contents of the input file
+     * @return The number of unique words in the text
+     */
+    public static int indexText(String fileText) {
+        // Replaces all the "_" in the file and converts everything to lowercase
+        fileText = fileText.replaceAll("_", " ").toLowerCase();
+
+        // Split the input into words using a Regex
+        String[] words = fileText.split("\\W+");
+
+        // Insert all the words in the file into the Tree
+        // Since we are reading the file top to bottom the position of the word in the array
+        // Is also the place where the word has its occurrence
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i];
+            tree.insert(word, new NodeData<>(word), i);
+        }
+
+        return getUniqueWordsCount(words);
+    }
+
+    /**
+     * Loads a file into a new tree and opens the log file without reading any command.
+     * Used by tools that call processCommand themselves, like the {@link LoadGenerator}.
+     *
+     * @param inputFile The file to be indexed
+     * @param outFile   The log file written by processCommand
+     * @param policy    The balance policy of the tree
+     * @return The tree holding the words of the file or null if the file can not be read
+     */
+    public static AvlTreeMap<String, NodeData<String>> loadFile(String inputFile, String outFile, BalancePolicy policy) {
+        String fileText = readFile(inputFile);
+        if (fileText == null) {
+            return null;
+        }
+
+        out = openOutputStream(outFile);
+        tree = new AvlTreeMap<>(policy);
+        indexText(fileText);
+        synchronized (tree) {
+            tree.enableFuzzyIndex();
+        }
+        return tree;
+    }
+
+    /**
+     * Indexes every file of a directory into the tree
+     *
+     * @param directory The directory holding the documents
+     * @return The number of unique words in all the documents
+     */
+    public static int indexCorpus(String directory) {
+        long start = System.currentTimeMillis();
+        try {
+            documents = new CorpusIndexer(tree).index(directory);
+        } catch (IOException ex) {
+            exit("Error: Could not index the documents in " + directory + ": " + ex.getMessage());
+        }
+        System.out.println("Indexed " + documents.size() + " documents in " + (System.currentTimeMillis() - start) + " ms.");
+        return tree.size();
+    }
+
+    /**
+     * Indexes the current contents of a file and starts a background thread that keeps indexing
+     * whatever is appended to it afterwards
+     *
+     * @param fileName The name of the file to be followed
+     * @return The number of unique words in the file when the initial indexing finished
+     */
+    public static int followFile(String fileName) {
+        FileFollower follower = new FileFollower(fileName, tree);
+        try {
+            follower.poll();
+        } catch (IOException ex) {
+            exit("Error: Could not read input file with name: " + fileName);
+        }
+
+        Thread thread = new Thread(follower, "file-follower");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Following " + fileName + " for appended words...");
+
+        synchronized (tree) {
+            return tree.size();
+        }
+    }
+
+    /**
+     * Opens the mutation log kept in a directory
+     *
+     * @param directory The directory holding the log and its checkpoints
+     */
+    public static void openMutationLog(String directory) {
+        try {
+            wal = new MutationLog(directory, tree);
+        } catch (IOException ex) {
+            exit("Error: Could not open the mutation log in " + directory + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Replays the mutation log on top of the tree and starts logging new mutations
+     *
+     * @return The number of unique words in the tree after the replay
+     */
+    public static int recoverMutationLog() {
+        try {
+            int replayed = wal.recover();
+            System.out.println("Replayed " + replayed + " mutations from the log.");
+        } catch (IOException ex) {
+            exit("Error: Could not recover the mutation log: " + ex.getMessage());
+        }
+        wal.start();
+        return tree.size();
+    }
+
+    /**
+     * Blocks until the mutations done so far are durable. Does nothing if the mutation log is not enabled
+     *
+     * @return True if the mutations are durable, false if the log could not be written
+     */
+    public static boolean syncMutationLog() {
+        if (wal == null) {
+            return true;
+        }
+        try {
+            wal.sync();
+            return true;
+        } catch (IOException ex) {
+            System.out.println("Error: Could not write the mutation log: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Starts a background thread serving the commands over TCP on localhost
+     *
+     * @param port The port where the server will listen for connections
+     */
+    public static void startServer(int port) {
+        CommandServer server = new CommandServer(port, wal);
+        try {
+            server.open();
+        } catch (IOException ex) {
+            exit("Error: Could not listen on port " + port + ": " + ex.getMessage());
+        }
+
+        Thread thread = new Thread(server, "command-server");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Serving commands on localhost:" + port);
+        System.out.println();
+    }
+
+    /**
+     * @param value The number of finds between two rebuilds of the tree typed in by the user
+     * @return The number of finds. The program exits if it is not a positive number
+     */
+    public static int parseRebuildInterval(String value) {
+        try {
+            int finds = Integer.parseInt(value);
+            if (finds >= 1) {
+                return finds;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        exit("Error: Invalid number of finds between rebuilds: " + value);
+        return -1;
+    }
+
+    /**
+     * @param value The port typed in by the user
+     * @return The port as a number. The program exits if it is not a valid port
+     */
+    public static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            if (port >= 0 && port <= 65535) {
+                return port;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        exit("Error: Invalid port: " + value);
+        return -1;
+    }
+
     /**
      * Opens an Output Stream that will write to a file
      *
@@ -167,79 +471,255 @@ public class Map {
      * @param input The command to be executed
      */
     public static void executeCommand(String input) {
+        if (isExitCommand(input)) {
+            if (wal != null) {
+                try {
+                    wal.close();
+                } catch (IOException ex) {
+                    System.out.println("Error: Could not checkpoint the mutation log: " + ex.getMessage());
+                }
+            }
+            out.write("\n");
+            out.flush();
+            out.close();
+            System.out.println("Now exiting the program...");
+            System.exit(0);
+        }
+
+        String output = processCommand(input);
+        syncMutationLog();
+        System.out.println(output);
+    }
+
+    /**
+     * @param input The command typed in by the user
+     * @return True if the command asks to exit the program
+     */
+    public static boolean isExitCommand(String input) {
+        String[] inputs = input.toLowerCase().split(" ");
+        return inputs.length == 1 && inputs[0].equals(EXIT);
+    }
+
+    /**
+     * Executes a command against the tree and writes its results to the log file.
+     * The exit command is not handled here since exiting depends on who issued the command.
+     *
+     * @param input The command to be executed
+     * @return The output of the command terminated by a new line
+     */
+    public static String processCommand(String input) {
 
         StringBuilder output = new StringBuilder();
         String[] inputs = input.toLowerCase().split(" ");
 
         output.append(new Date()).append(" ~ ");
 
-        if (inputs.length < 2) {
-            if (inputs.length == 1) {
-                if (inputs[0].equals(EXIT)) {
-                    out.write("\n");
-                    out.flush();
-                    out.close();
-                    System.out.println("Now exiting the program...");
-                    System.exit(0);
-                } else if(inputs[0].equals(HEIGHT)) {
-                    output.append("height: The height of three is: ").append(tree.getHeight());
+        // The tree may be updated by a FileFollower while we execute the command
+        synchronized (tree) {
+            if (inputs.length < 2) {
+                if (inputs.length == 1) {
+                    if (inputs[0].equals(HEIGHT)) {
+                        output.append("height: The height of three is: ").append(tree.getHeight())
+                                .append(" (").append(tree.getBalancePolicy()).append(", ").append(tree.getRotationCount()).append(" rotations)");
+                    } else if (inputs[0].equals(STATS)) {
+                        output.append("stats: ").append(tree.stats());
+                    } else {
+                        output.append("Invalid command. Valid commands are: find, occurs, count, replace, height, top, fuzzy, stats");
+                    }
                 } else {
-                    output.append("Invalid command. Valid commands are: find, occurs, count, replace, height");
+                    output.append("Usage: <command> <args>");
                 }
             } else {
-                output.append("Usage: <command> <args>");
-            }
-        } else {
-            String command = inputs[0];
-            String word = inputs[1];
-            switch (command) {
-                case FIND:
-                    NodeComparisonWrapper<String, NodeData<String>> nodeWrapper = tree.find(word);
-                    if (nodeWrapper.getNode() == null) {
-                        output.append("find: Could not find '").append(word).append("'");
-                    } else {
-                        output.append("find: Found '").append(word).append("' with ").append(nodeWrapper.getComparison()).append(" comparisons");
-                    }
-                    break;
-                case OCCURS:
-                    List<Integer> occurrences = tree.occurs(word);
-                    if (occurrences == null) {
-                        output.append("occurs: Could not find occurrences for word: ").append(word);
-                    } else {
-                        output.append("occurs: Occurrences for word ").append(word).append(": ").append(occurrences);
-                    }
-                    break;
-                case COUNT:
-                    int count = tree.count(word);
-                    if (count == -1) {
-                        output.append("count: Could not find he word: ").append(word);
-                    } else {
-                        output.append("count: The word '").append(word).append("' appears ").append(count).append(" times.");
-                    }
-
-                    break;
-                case REPLACE:
-                    String word2 = inputs.length > 2 ? inputs[2] : null;
-                    AvlNode<String, NodeData<String>> node = tree.replace(word, word2);
-
-                    if (node == null) {
-                        output.append("replace: could not find word '").append(word).append("'");
-                    } else if (node.getKey() == null) {
-                        output.append("replace: removed word '").append(word).append("'");
-                    } else {
-                        output.append("replace: replaced word '").append(word).append("' with '").append(word2).append("'");
-                    }
-
-                    break;
-                default:
-                    output.append("Invalid command. Valid commands are: find, occurs, count, replace, height");
-                    break;
+                String command = inputs[0];
+                String word = inputs[1];
+                switch (command) {
+                    case FIND:
+                        NodeComparisonWrapper<String, NodeData<String>> nodeWrapper = tree.find(word);
+                        if (nodeWrapper.getNode() == null) {
+                            output.append("find: Could not find '").append(word).append("'");
+                        } else {
+                            output.append("find: Found '").append(word).append("' with ").append(nodeWrapper.getComparison()).append(" comparisons");
+                        }
+                        break;
+                    case OCCURS:
+                        if (documents != null) {
+                            appendCorpusOccurs(output, word, inputs.length > 2 ? inputs[2] : null);
+                            break;
+                        }
+                        List<Integer> occurrences = tree.occurs(word);
+                        if (occurrences == null) {
+                            output.append("occurs: Could not find occurrences for word: ").append(word);
+                        } else {
+                            output.append("occurs: Occurrences for word ").append(word).append(": ").append(occurrences);
+                        }
+                        break;
+                    case COUNT:
+                        if (documents != null) {
+                            appendCorpusCount(output, word, inputs.length > 2 ? inputs[2] : null);
+                            break;
+                        }
+                        int count = tree.count(word);
+                        if (count == -1) {
+                            output.append("count: Could not find he word: ").append(word);
+                        } else {
+                            output.append("count: The word '").append(word).append("' appears ").append(count).append(" times.");
+                        }
+
+                        break;
+                    case REPLACE:
+                        String word2 = inputs.length > 2 ? inputs[2] : null;
+                        if (wal != null && !MutationLog.canLog(word, word2)) {
+                            output.append("replace: the words are too long to be logged");
+                            break;
+                        }
+                        AvlNode<String, NodeData<String>> node = tree.replace(word, word2);
+                        if (node != null && wal != null) {
+                            wal.logReplace(word, word2);
+                        }
+
+                        if (node == null) {
+                            output.append("replace: could not find word '").append(word).append("'");
+                        } else if (node.getKey() == null) {
+                            output.append("replace: removed word '").append(word).append("'");
+                        } else {
+                            output.append("replace: replaced word '").append(word).append("' with '").append(word2).append("'");
+                        }
+
+                        break;
+                    case TOP:
+                        int k;
+                        try {
+                            k = Integer.parseInt(word);
+                        } catch (NumberFormatException ex) {
+                            k = 0;
+                        }
+                        if (k < 1) {
+                            output.append("top: Invalid number of words: ").append(word);
+                            break;
+                        }
+
+                        // top <k> [<from> <to>]
+                        boolean inRange = inputs.length > 3;
+                        List<AvlNode<String, NodeData<String>>> top = inRange ? tree.topK(k, inputs[2], inputs[3]) : tree.topK(k);
+                        output.append("top: The ").append(top.size()).append(" most frequent words");
+                        if (inRange) {
+                            output.append(" between '").append(inputs[2]).append("' and '").append(inputs[3]).append("'");
+                        }
+                        output.append(" are: ");
+                        for (int i = 0; i < top.size(); i++) {
+                            AvlNode<String, NodeData<String>> topNode = top.get(i);
+                            output.append(i == 0 ? "" : ", ").append(topNode.getKey()).append(" (").append(topNode.getValue().getCount()).append(")");
+                        }
+                        break;
+                    case FUZZY:
+                        int distance;
+                        try {
+                            distance = inputs.length > 2 ? Integer.parseInt(inputs[2]) : DEFAULT_FUZZY_DISTANCE;
+                        } catch (NumberFormatException ex) {
+                            distance = -1;
+                        }
+                        if (distance < 0) {
+                            output.append("fuzzy: Invalid edit distance: ").append(inputs[2]);
+                            break;
+                        }
+
+                        // fuzzy <word> [<distance>]
+                        List<AvlNode<String, NodeData<String>>> matches = tree.fuzzyFind(word, distance);
+                        if (matches.isEmpty()) {
+                            output.append("fuzzy: Could not find words within ").append(distance).append(" edits of '").append(word).append("'");
+                        } else {
+                            output.append("fuzzy: Words within ").append(distance).append(" edits of '").append(word).append("': ");
+                            for (int i = 0; i < matches.size(); i++) {
+                                String match = matches.get(i).getKey();
+                                output.append(i == 0 ? "" : ", ").append(match).append(" (").append(FuzzyIndex.distance(word, match)).append(")");
+                            }
+                        }
+                        break;
+                    default:
+                        output.append("Invalid command. Valid commands are: find, occurs, count, replace, height, top, fuzzy, stats");
+                        break;
+                }
             }
         }
 
         output.append("\n");
-        System.out.println(output.toString());
         out.write(output.toString());
         out.flush();
+        return output.toString();
+    }
+
+    /**
+     * Appends the postings of a word in the corpus to the output of the occurs command
+     *
+     * @param output The output of the command
+     * @param word   The word we want the occurrences for
+     * @param doc    The docId typed in by the user to filter the occurrences, null for all documents
+     */
+    private static void appendCorpusOccurs(StringBuilder output, String word, String doc) {
+        PostingsData<String> postings = findPostings(word);
+        int docId = doc == null ? -1 : parseDocId(doc);
+
+        if (postings == null) {
+            output.append("occurs: Could not find occurrences for word: ").append(word);
+        } else if (doc != null && docId == -1) {
+            output.append("occurs: Invalid document: ").append(doc);
+        } else if (doc != null) {
+            output.append("occurs: Occurrences for word ").append(word).append(" in ").append(documents.get(docId))
+                    .append(": ").append(Arrays.toString(postings.getPositions(docId)));
+        } else {
+            // Each occurrence is printed as <docId>:<position>
+            output.append("occurs: Occurrences for word ").append(word).append(": [");
+            long[] all = postings.getPostings();
+            for (int i = 0; i < all.length; i++) {
+                output.append(i == 0 ? "" : ", ").append(PostingsData.docId(all[i])).append(":").append(PostingsData.position(all[i]));
+            }
+            output.append("]");
+        }
+    }
+
+    /**
+     * Appends the count of a word in the corpus to the output of the count command
+     *
+     * @param output The output of the command
+     * @param word   The word that we want to count
+     * @param doc    The docId typed in by the user to filter the count, null for all documents
+     */
+    private static void appendCorpusCount(StringBuilder output, String word, String doc) {
+        PostingsData<String> postings = findPostings(word);
+        int docId = doc == null ? -1 : parseDocId(doc);
+
+        if (postings == null) {
+            output.append("count: Could not find he word: ").append(word);
+        } else if (doc != null && docId == -1) {
+            output.append("count: Invalid document: ").append(doc);
+        } else if (doc != null) {
+            output.append("count: The word '").append(word).append("' appears ").append(postings.getCount(docId))
+                    .append(" times in ").append(documents.get(docId)).append(".");
+        } else {
+            output.append("count: The word '").append(word).append("' appears ").append(postings.getCount())
+                    .append(" times in ").append(postings.getDocumentCount()).append(" documents.");
+        }
+    }
+
+    /**
+     * @param word The word to be found
+     * @return The postings of the word or null if it is not in the corpus
+     */
+    private static PostingsData<String> findPostings(String word) {
+        AvlNode<String, NodeData<String>> node = tree.find(word).getNode();
+        return node == null ? null : (PostingsData<String>) node.getValue();
+    }
+
+    /**
+     * @param doc The docId typed in by the user
+     * @return The docId or -1 if it is not a valid document
+     */
+    private static int parseDocId(String doc) {
+        try {
+            int docId = Integer.parseInt(doc);
+            return docId >= 0 && docId < documents.size() ? docId : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
     }
 }
@@ -0,0 +1,558 @@
+package com.gabilheri;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log that makes the mutations of an {@link AvlTreeMap} durable.
+ * <p>
+ * The log records the replace command, which is the only way the tree changes once it was loaded: a replace
+ * with no second word removes a key and otherwise moves its occurrences to another key. The words of the
+ * input file are not logged, on restart they come from the checkpoint or are indexed again from the file.
+ * This is why the follow and corpus modes, whose inserts are not in the input file, can not be used with it.
+ * <p>
+ * Every replace is appended to an in memory buffer by the thread doing it, while holding the lock of the
+ * tree so the records are in the same order as the mutations. A background thread writes the buffer to the
+ * log file and forces it to disk. Records appended while a force is in
+ * progress are written together by the next one, so many mutations share the cost of a single fsync
+ * (group commit). Callers that need their mutations to be durable call {@link #sync()} after releasing
+ * the lock of the tree.
+ * <p>
+ * When the log gets larger than the checkpoint size the whole tree is written to a checkpoint file and the
+ * log is truncated. On restart {@link #recover()} loads the last checkpoint, if there is one, and replays
+ * the records written after it on top of it.
+ * <p>
+ * Each record is written as: length, payload, CRC32 of the payload. The payload holds the sequence number
+ * of the record, the operation and its arguments. A torn record at the end of the log is discarded. Keys are
+ * written as their length in bytes followed by their UTF-8 bytes, so there is no limit on the length of a word
+ * other than the size of a record, which {@link #canLog(String, String)} checks before the tree is changed.
+ */
+public class MutationLog implements Runnable {
+
+    /**
+     * Default size in bytes of the log after which a checkpoint is taken
+     */
+    public static final long DEFAULT_CHECKPOINT_SIZE = 4 * 1024 * 1024;
+
+    private static final String LOG_FILE = "wal.log";
+    private static final String CHECKPOINT_FILE = "checkpoint.dat";
+    private static final String CHECKPOINT_TEMP_FILE = "checkpoint.tmp";
+    private static final int CHECKPOINT_MAGIC = 0x41564C43; // "AVLC"
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+    /**
+     * Operation recorded in the log
+     */
+    private static final byte REPLACE = 3;
+
+    private final Path directory;
+    private final AvlTreeMap<String, NodeData<String>> tree;
+    private final long checkpointSize;
+    private final FileChannel channel;
+    private final Object flushLock = new Object(); // Held while writing to the log file
+
+    // Guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSequence;  // Sequence number of the last record appended
+    private long durableSequence;   // Sequence number of the last record forced to disk
+    private IOException failure;    // Set when the log can not be written anymore
+    private boolean running;
+
+    private Thread flusher;
+    private volatile Runnable durableListener;  // Called after records became durable or the log failed
+
+    /**
+     * Default constructor using the default checkpoint size
+     *
+     * @param directory The directory holding the log and the checkpoint files
+     * @param tree      The tree whose mutations are logged
+     * @throws IOException If the log can not be opened
+     */
+    public MutationLog(String directory, AvlTreeMap<String, NodeData<String>> tree) throws IOException {
+        this(directory, tree, DEFAULT_CHECKPOINT_SIZE);
+    }
+
+    /**
+     * @param directory      The directory holding the log and the checkpoint files
+     * @param tree           The tree whose mutations are logged
+     * @param checkpointSize Size in bytes of the log after which a checkpoint is taken
+     * @throws IOException If the log can not be opened
+     */
+    public MutationLog(String directory, AvlTreeMap<String, NodeData<String>> tree, long checkpointSize) throws IOException {
+        this.directory = Paths.get(directory);
+        this.tree = tree;
+        this.checkpointSize = checkpointSize;
+        Files.createDirectories(this.directory);
+        this.channel = FileChannel.open(this.directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return True if a checkpoint was written by a previous run
+     */
+    public boolean hasCheckpoint() {
+        return Files.exists(directory.resolve(CHECKPOINT_FILE));
+    }
+
+    /**
+     * Loads the last checkpoint, if any, into the tree and replays the log on top of it.
+     * If there is no checkpoint the log is replayed on top of whatever the tree already holds.
+     *
+     * @return The number of records replayed
+     * @throws IOException If the checkpoint or the log can not be read
+     */
+    public int recover() throws IOException {
+        long checkpointSequence = hasCheckpoint() ? loadCheckpoint() : 0;
+        long sequence = checkpointSequence;
+        long validLength = 0;
+        int replayed = 0;
+
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int checksum = in.readInt();
+                if (checksum != checksum(payload)) {
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                long recordSequence = record.readLong();
+                if (recordSequence > checkpointSequence) {
+                    apply(record);
+                    replayed++;
+                }
+                sequence = Math.max(sequence, recordSequence);
+                validLength += 4 + length + 4;
+            }
+        } catch (EOFException ex) {
+            // Torn record at the end of the log
+        }
+
+        // Drop whatever follows the last complete record so new records are appended right after it
+        channel.truncate(validLength);
+        channel.position(validLength);
+
+        synchronized (this) {
+            appendedSequence = sequence;
+            durableSequence = sequence;
+        }
+        return replayed;
+    }
+
+    /**
+     * Applies a record read from the log to the tree
+     *
+     * @param record The payload of the record, positioned after the sequence number
+     * @throws IOException If the record can not be decoded
+     */
+    private void apply(DataInputStream record) throws IOException {
+        byte operation = record.readByte();
+        String key = readKey(record);
+        if (operation != REPLACE) {
+            throw new IOException("Unknown operation in log: " + operation);
+        }
+        tree.replace(key, record.readBoolean() ? readKey(record) : null);
+    }
+
+    /**
+     * Writes a key as its length in bytes and its UTF-8 bytes
+     *
+     * @param out The stream to write to
+     * @param key The key to be written
+     * @throws IOException If the key can not be written
+     */
+    private static void writeKey(DataOutputStream out, String key) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param in The stream to read from
+     * @return A key written by {@link #writeKey(DataOutputStream, String)}
+     * @throws IOException If the key can not be read
+     */
+    private static String readKey(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid key length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts the background thread forcing the log to disk
+     *
+     * @return Instance of this object
+     */
+    public MutationLog start() {
+        synchronized (this) {
+            running = true;
+        }
+        flusher = new Thread(this, "mutation-log");
+        flusher.setDaemon(true);
+        flusher.start();
+        return this;
+    }
+
+    /**
+     * Sets the callback run by the thread forcing the log every time records became durable or the log failed.
+     * Lets a caller that can not block, like the selector thread of the {@link CommandServer}, be woken up
+     * instead of waiting in {@link #sync()}.
+     *
+     * @param listener The callback, it must return quickly
+     */
+    public void setDurableListener(Runnable listener) {
+        this.durableListener = listener;
+    }
+
+    /**
+     * @return The sequence number of the last record appended
+     */
+    public synchronized long getAppendedSequence() {
+        return appendedSequence;
+    }
+
+    /**
+     * @return The sequence number of the last record forced to disk
+     */
+    public synchronized long getDurableSequence() {
+        return durableSequence;
+    }
+
+    /**
+     * @return True if the log can not be written anymore
+     */
+    public synchronized boolean hasFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Must be checked before replacing key1 with key2 in the tree, since a replace that can not be logged would
+     * be lost on restart
+     *
+     * @param key1 The key to be replaced
+     * @param key2 The key replacing key1 or null if key1 is to be removed
+     * @return True if the record of the replace fits in the log
+     */
+    public static boolean canLog(String key1, String key2) {
+        // Sequence, operation, the length and bytes of key1, the flag of key2 and its length and bytes
+        long length = 8 + 1 + 4 + key1.getBytes(StandardCharsets.UTF_8).length + 1;
+        if (key2 != null) {
+            length += 4 + key2.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return length <= MAX_RECORD_LENGTH;
+    }
+
+    /**
+     * Records a replace. Must be called while holding the lock of the tree, after checking
+     * {@link #canLog(String, String)}
+     *
+     * @param key1 The key replaced
+     * @param key2 The key replacing key1 or null if key1 was removed
+     */
+    public void logReplace(String key1, String key2) {
+        append(REPLACE, key1, key2);
+    }
+
+    /**
+     * Encodes a record and appends it to the pending buffer
+     */
+    private synchronized void append(byte operation, String key1, String key2) {
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeLong(++appendedSequence);
+            payload.writeByte(operation);
+            writeKey(payload, key1);
+            payload.writeBoolean(key2 != null);
+            if (key2 != null) {
+                writeKey(payload, key2);
+            }
+
+            byte[] bytes = payloadBytes.toByteArray();
+            DataOutputStream record = new DataOutputStream(pending);
+            record.writeInt(bytes.length);
+            record.write(bytes);
+            record.writeInt(checksum(bytes));
+        } catch (IOException ex) {
+            // Writing to a ByteArrayOutputStream never fails
+            throw new UncheckedIOException(ex);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Blocks until every record appended before this call is on disk
+     *
+     * @throws IOException If the log could not be written
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appendedSequence;
+        }
+
+        while (true) {
+            synchronized (this) {
+                if (durableSequence >= target) {
+                    return;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the log");
+                    }
+                    continue;
+                }
+            }
+            // Nobody is flushing in the background so we do it ourselves
+            flush();
+        }
+    }
+
+    /**
+     * Background loop writing the pending records. Every iteration writes everything appended so far
+     * with a single force, and takes a checkpoint when the log got too large.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                while (running && pending.size() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+            }
+
+            try {
+                flush();
+                if (channel.size() >= checkpointSize) {
+                    checkpoint();
+                }
+            } catch (IOException ex) {
+                synchronized (this) {
+                    failure = ex;
+                    running = false;
+                    notifyAll();
+                }
+                notifyDurableListener();
+                System.out.println("Error: Could not write the mutation log: " + ex.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes and forces the records appended so far
+     *
+     * @throws IOException If the log can not be written
+     */
+    private void flush() throws IOException {
+        synchronized (flushLock) {
+            flushPending();
+        }
+    }
+
+    /**
+     * Writes and forces the records appended so far. Must be called while holding the flush lock
+     *
+     * @throws IOException If the log can not be written
+     */
+    private void flushPending() throws IOException {
+        byte[] batch;
+        long batchSequence;
+        synchronized (this) {
+            batch = pending.toByteArray();
+            batchSequence = appendedSequence;
+            pending = new ByteArrayOutputStream();
+        }
+
+        if (batch.length > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+
+        synchronized (this) {
+            durableSequence = Math.max(durableSequence, batchSequence);
+            notifyAll();
+        }
+        notifyDurableListener();
+    }
+
+    /**
+     * Runs the durable listener, if any
+     */
+    private void notifyDurableListener() {
+        Runnable listener = durableListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Writes the whole tree to the checkpoint file and truncates the log.
+     * The tree is locked while the checkpoint is written so it matches the records in the log.
+     *
+     * @throws IOException If the checkpoint can not be written
+     */
+    public void checkpoint() throws IOException {
+        synchronized (tree) {
+            synchronized (flushLock) {
+                flushPending();
+
+                long sequence;
+                synchronized (this) {
+                    sequence = durableSequence;
+                }
+
+                Path temp = directory.resolve(CHECKPOINT_TEMP_FILE);
+                try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                    out.writeInt(CHECKPOINT_MAGIC);
+                    out.writeLong(sequence);
+                    out.writeInt(tree.size());
+                    writeNodes(out, tree.root);
+                    out.flush();
+                    file.getFD().sync();
+                }
+                Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                // The rename is only durable once the directory is forced, otherwise a crash could bring back
+                // the old checkpoint next to the emptied log
+                try (FileChannel parent = FileChannel.open(directory, StandardOpenOption.READ)) {
+                    parent.force(true);
+                }
+
+                // Records up to the checkpoint sequence are skipped on recovery, so a crash before this point is harmless
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Writes every node of a subtree in sorted order
+     *
+     * @param out  The stream of the checkpoint file
+     * @param node The node that roots the subtree
+     * @throws IOException If the checkpoint can not be written
+     */
+    private void writeNodes(DataOutputStream out, AvlNode<String, NodeData<String>> node) throws IOException {
+        if (node == null) {
+            return;
+        }
+        writeNodes(out, node.getLeft());
+        List<Integer> occurrences = node.getValue().getOccurrences();
+        writeKey(out, node.getKey());
+        out.writeInt(occurrences.size());
+        for (int position : occurrences) {
+            out.writeInt(position);
+        }
+        writeNodes(out, node.getRight());
+    }
+
+    /**
+     * Loads the checkpoint file into the tree, replacing whatever it holds
+     *
+     * @return The sequence number of the last record included in the checkpoint
+     * @throws IOException If the checkpoint can not be read
+     */
+    private long loadCheckpoint() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(directory.resolve(CHECKPOINT_FILE).toFile())))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Invalid checkpoint file");
+            }
+            long sequence = in.readLong();
+            int nodes = in.readInt();
+
+            tree.makeEmpty();
+            for (int i = 0; i < nodes; i++) {
+                String key = readKey(in);
+                int count = in.readInt();
+                List<Integer> occurrences = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    occurrences.add(in.readInt());
+                }
+                tree.insert(key, new NodeData<>(key, occurrences));
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * Stops the background thread, writes a final checkpoint and closes the log
+     *
+     * @throws IOException If the log can not be written
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            checkpoint();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @param bytes The payload of a record
+     * @return The CRC32 of the payload
+     */
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
@@ -85,6 +85,50 @@ public class NodeData<T> {
         return this;
     }
 
+    /**
+     * Adds all the occurrences of another NodeData to this one
+     *
+     * @param other The NodeData holding the occurrences to be added
+     * @return Instance of this Object
+     */
+    public NodeData<T> merge(NodeData<T> other) {
+        this.occurrences.addAll(other.getOccurrences());
+        return this;
+    }
+
+    /**
+     * @return The estimated bytes of this object, without its value and occurrences
+     */
+    public long estimateBytes() {
+        return TreeStats.align(TreeStats.OBJECT_HEADER + 2 * TreeStats.REFERENCE);
+    }
+
+    /**
+     * Estimates the bytes of the occurrence list assuming it grew by ArrayList's default policy:
+     * the list, its backing array and one Integer for every position outside of the Integer cache
+     *
+     * @return The estimated bytes of the occurrences of this object
+     */
+    public long estimateOccurrenceBytes() {
+        if (occurrences == null) {
+            return 0;
+        }
+
+        int capacity = occurrences.isEmpty() ? 0 : 10;
+        while (capacity < occurrences.size()) {
+            capacity += capacity >> 1;
+        }
+
+        long bytes = TreeStats.align(TreeStats.OBJECT_HEADER + 8 + TreeStats.REFERENCE)
+                + TreeStats.align(TreeStats.ARRAY_HEADER + (long) TreeStats.REFERENCE * capacity);
+        for (int position : occurrences) {
+            if (position < -128 || position > 127) {
+                bytes += TreeStats.align(TreeStats.OBJECT_HEADER + 4);
+            }
+        }
+        return bytes;
+    }
+
     @Override
     public String toString() {
         return "NodeData{" +
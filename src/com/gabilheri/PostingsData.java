@@ -0,0 +1,237 @@
+package com.gabilheri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * NodeData for an index of many documents. Every occurrence is a (docId, position) posting.
+ * <p>
+ * Postings are packed into a single long each, the document in the high 32 bits and the position in the low
+ * 32 bits, and kept in a growable long array instead of a list of objects.
+ * <p>
+ * The methods of NodeData that only know about positions treat a position without a document as a posting of
+ * {@link #DEFAULT_DOC_ID}, the document a single text indexed by itself would be. The occurrence list is a view
+ * of the positions without their documents, built when it is asked for and kept until a posting is added.
+ *
+ * @param <T> The type of data this NodeData will hold
+ */
+public class PostingsData<T> extends NodeData<T> {
+
+    /**
+     * The document of the positions added without a document
+     */
+    public static final int DEFAULT_DOC_ID = 0;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    long[] postings;    // Packed (docId, position) pairs in the order they were added
+    int size;           // The number of postings in use
+    int viewSize;       // The number of postings in the occurrences view, -1 if the view must be built again
+
+    /**
+     * Default constructor of this PostingsData class
+     *
+     * @param value The value of this Node
+     */
+    public PostingsData(T value) {
+        super(value, Collections.<Integer>emptyList());
+        this.postings = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @param docId    The document of the posting
+     * @param position The position of the word in the document
+     * @return The posting packed into a long
+     */
+    public static long encode(int docId, int position) {
+        return ((long) docId << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param posting A packed posting
+     * @return The document of the posting
+     */
+    public static int docId(long posting) {
+        return (int) (posting >>> 32);
+    }
+
+    /**
+     * @param posting A packed posting
+     * @return The position of the posting in its document
+     */
+    public static int position(long posting) {
+        return (int) posting;
+    }
+
+    /**
+     * @param docId    The document where this NodeData occurs
+     * @param position The position in the document where this NodeData occurs
+     * @return Instance of this Object
+     */
+    public PostingsData<T> addPosting(int docId, int position) {
+        if (size == postings.length) {
+            postings = Arrays.copyOf(postings, size * 2);
+        }
+        postings[size++] = encode(docId, position);
+        return this;
+    }
+
+    /**
+     * @return A copy of the postings sorted by document and then by position
+     */
+    public long[] getPostings() {
+        long[] sorted = Arrays.copyOf(postings, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @param docId The document we want the positions for
+     * @return The sorted positions where this NodeData occurs in the document
+     */
+    public int[] getPositions(int docId) {
+        int[] positions = new int[getCount(docId)];
+        int found = 0;
+        for (int i = 0; i < size; i++) {
+            if (docId(postings[i]) == docId) {
+                positions[found++] = position(postings[i]);
+            }
+        }
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    /**
+     * @param docId The document we want the count for
+     * @return The number of times this NodeData occurs in the document
+     */
+    public int getCount(int docId) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (docId(postings[i]) == docId) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of different documents where this NodeData occurs
+     */
+    public int getDocumentCount() {
+        long[] sorted = getPostings();
+        int documents = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || docId(sorted[i]) != docId(sorted[i - 1])) {
+                documents++;
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * The positions of the postings sorted by document and then by position, without their documents. The view is
+     * lossy: positions of different documents can not be told apart, use {@link #getPostings()} when the documents
+     * matter. It is built again only after postings were added.
+     *
+     * @return An unmodifiable list with the positions of all the postings
+     */
+    @Override
+    public List<Integer> getOccurrences() {
+        if (viewSize != size) {
+            List<Integer> positions = new ArrayList<>(size);
+            for (long posting : getPostings()) {
+                positions.add(position(posting));
+            }
+            occurrences = Collections.unmodifiableList(positions);
+            viewSize = size;
+        }
+        return occurrences;
+    }
+
+    /**
+     * Replaces the postings with the positions of a list, all of them in {@link #DEFAULT_DOC_ID}
+     *
+     * @param occurrences The list of positions for this Node
+     * @return Instance of this Object
+     */
+    @Override
+    public NodeData<T> setOccurrences(List<Integer> occurrences) {
+        size = 0;
+        viewSize = -1;
+        for (int position : occurrences) {
+            addPosting(DEFAULT_DOC_ID, position);
+        }
+        return this;
+    }
+
+    /**
+     * @return The number of postings of this NodeData in all documents
+     */
+    @Override
+    public int getCount() {
+        return size;
+    }
+
+    /**
+     * Adds a posting of the position in {@link #DEFAULT_DOC_ID}
+     *
+     * @param position The position that this NodeData occurs
+     * @return Instance of this Object
+     */
+    @Override
+    public NodeData<T> addOccurrence(int position) {
+        return addPosting(DEFAULT_DOC_ID, position);
+    }
+
+    /**
+     * Adds all the postings of another PostingsData to this one. The occurrences of a plain NodeData are added as
+     * postings of {@link #DEFAULT_DOC_ID}.
+     *
+     * @param other The NodeData holding the postings to be added
+     * @return Instance of this Object
+     */
+    @Override
+    public NodeData<T> merge(NodeData<T> other) {
+        if (!(other instanceof PostingsData)) {
+            for (int position : other.getOccurrences()) {
+                addPosting(DEFAULT_DOC_ID, position);
+            }
+            return this;
+        }
+        PostingsData<T> data = (PostingsData<T>) other;
+        if (size + data.size > postings.length) {
+            postings = Arrays.copyOf(postings, Math.max(postings.length * 2, size + data.size));
+        }
+        System.arraycopy(data.postings, 0, postings, size, data.size);
+        size += data.size;
+        return this;
+    }
+
+    /**
+     * @return The estimated bytes of this object, without its value and postings
+     */
+    @Override
+    public long estimateBytes() {
+        return TreeStats.align(TreeStats.OBJECT_HEADER + 3 * TreeStats.REFERENCE + 8);
+    }
+
+    /**
+     * @return The estimated bytes of the postings array and of the occurrences view if it was built
+     */
+    @Override
+    public long estimateOccurrenceBytes() {
+        long bytes = TreeStats.align(TreeStats.ARRAY_HEADER + 8L * postings.length);
+        return occurrences.isEmpty() ? bytes : bytes + super.estimateOccurrenceBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "PostingsData{" +
+                "value=" + value +
+                ", postings=" + size +
+                '}';
+    }
+}
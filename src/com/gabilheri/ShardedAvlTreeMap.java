@@ -0,0 +1,711 @@
+package com.gabilheri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Thread safe map that splits the key space into range partitions (shards), each one backed by its own
+ * {@link AvlTreeMap} and its own read/write lock, so writers to different shards do not wait for each other.
+ * <p>
+ * Point operations are routed to the shard owning the key. Range, size and topK queries are sent to every
+ * shard they touch in parallel and their results are merged.
+ * <p>
+ * Every shard keeps its rate of writes, decayed by half every second, so the rate follows the current load and
+ * not the writes since the shard was created. A shard whose rate goes over the split rate is split at its median
+ * key into two new shards. At the same time the pair of neighbouring shards with the lowest rate is merged into one
+ * when it is cold (a fourth of the split rate), or, once the maximum number of shards is reached, when it is
+ * colder than half the rate of the hot shard, so the shards move over to where the writes go. A shard that can not
+ * be split is not checked again for a second. The table of shards is replaced as a whole on every split or merge
+ * and the old shards are marked as retired, so an operation that locked a retired shard routes its key again.
+ * <p>
+ * The supported operations of this class are the same ones of {@link AvlTreeMap} that make sense across shards.
+ * Nodes never leave their shard: the operations returning nodes return {@link Entry} snapshots of their key and
+ * count instead, taken while the shard is locked, since a node may be changed by another thread once it is unlocked.
+ * <ul>
+ * <li> void insert(K, V, int);             Insert K, V with an occurrence position </li>
+ * <li> void remove(K);                     Remove K </li>
+ * <li> Entry<K> find(K)                    Returns a snapshot of the Node with K </li>
+ * <li> List<Integer> occurs(K);            Returns a copy of the occurrences of that Node </li>
+ * <li> int count(K);                       Returns the number of occurrences of that Node </li>
+ * <li> Entry<K> replace(K1, K2);           Replaces K1 with K2, even when they belong to different shards </li>
+ * <li> int size();                         Returns the number of nodes in all the shards </li>
+ * <li> int getHeight();                    Returns the height of the tallest shard </li>
+ * <li> List<Entry<K>> range(lo, hi);       Returns snapshots of the nodes with keys between lo and hi in sorted order </li>
+ * <li> List<Entry<K>> topK(k);             Returns snapshots of the k nodes with the most occurrences </li>
+ * </ul>
+ *
+ * @param <K> Key
+ * @param <V> Value
+ */
+public class ShardedAvlTreeMap<K extends Comparable<K>, V extends NodeData> {
+
+    /**
+     * Default number of writes per second above which a shard is split
+     */
+    public static final double DEFAULT_SPLIT_RATE = 10000;
+
+    private static final long HALF_LIFE_NANOS = 1000000000L; // The rate of writes of a shard halves every second
+    private static final double DECAY_PER_NANO = Math.log(2) / HALF_LIFE_NANOS;
+
+    private final int maxShards;
+    private final double splitRate;
+    private final ExecutorService executor;
+    private final Object splitLock = new Object(); // Held while a shard is split
+    private volatile List<Shard<K, V>> shards;     // Sorted by the lowest key of each shard
+    private long nextShardId;                      // Guarded by splitLock
+
+    /**
+     * Default constructor. Starts with a single shard that splits up to 4 shards per processor
+     */
+    public ShardedAvlTreeMap() {
+        this(Collections.<K>emptyList(), 4 * Runtime.getRuntime().availableProcessors(), DEFAULT_SPLIT_RATE);
+    }
+
+    /**
+     * Constructor to create a map with known partitions
+     *
+     * @param splitKeys   The sorted keys where a new shard starts. n keys create n + 1 shards
+     * @param maxShards   The number of shards after which shards are not split anymore
+     * @param splitRate   The number of writes per second above which a shard is split
+     */
+    public ShardedAvlTreeMap(List<K> splitKeys, int maxShards, double splitRate) {
+        this.maxShards = maxShards;
+        this.splitRate = splitRate;
+
+        List<Shard<K, V>> initial = new ArrayList<>();
+        initial.add(new Shard<K, V>(nextShardId++, null));
+        for (K key : splitKeys) {
+            initial.add(new Shard<K, V>(nextShardId++, key));
+        }
+        this.shards = Collections.unmodifiableList(initial);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "shard-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Inserts a node into its shard and adds the position to it's list of occurrences
+     *
+     * @param key      The Key of the Node
+     * @param value    The Value of the Node
+     * @param position The position of the Node
+     */
+    public void insert(K key, V value, int position) {
+        Shard<K, V> shard = lock(key, true);
+        try {
+            shard.tree.insert(key, value, position);
+        } finally {
+            shard.writeLock.unlock();
+        }
+        afterWrite(shard);
+    }
+
+    /**
+     * Public facing method to insert a node when position is not important
+     *
+     * @param key   The key of the Node
+     * @param value The value of the Node
+     */
+    public void insert(K key, V value) {
+        insert(key, value, -1);
+    }
+
+    /**
+     * Remove from its shard. Nothing is done if key is not found.
+     *
+     * @param key The item to remove.
+     */
+    public void remove(K key) {
+        Shard<K, V> shard = lock(key, true);
+        try {
+            shard.tree.remove(key);
+        } finally {
+            shard.writeLock.unlock();
+        }
+        afterWrite(shard);
+    }
+
+    /**
+     * @param key The key of the node to be found
+     * @return A snapshot of the node that was found or null if the key is not in the map
+     */
+    public Entry<K> find(K key) {
+        Shard<K, V> shard = lock(key, false);
+        try {
+            return snapshot(shard.tree.find(key).getNode());
+        } finally {
+            shard.readLock.unlock();
+        }
+    }
+
+    /**
+     * @param key The key of the node we need the occurences for
+     * @return A copy of the list with all the occurences and positions for that node, null if not found
+     */
+    public List<Integer> occurs(K key) {
+        Shard<K, V> shard = lock(key, false);
+        try {
+            List<Integer> occurrences = shard.tree.occurs(key);
+            return occurrences == null ? null : new ArrayList<>(occurrences);
+        } finally {
+            shard.readLock.unlock();
+        }
+    }
+
+    /**
+     * @param key The key of the node that we want to count
+     * @return The number of times that node appeared
+     * -1 if the Node can not be found
+     */
+    public int count(K key) {
+        Shard<K, V> shard = lock(key, false);
+        try {
+            return shard.tree.count(key);
+        } finally {
+            shard.readLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the node associated with key1 with key2, same as {@link AvlTreeMap#replace(Comparable, Comparable)}.
+     * When the keys belong to different shards both shards are locked, always in the same order.
+     *
+     * @param key1 The key for the node to be replaced
+     * @param key2 The key for the node replacing the 1st node
+     * @return null if the node can not be found
+     * An entry with a null key if the 1st node is removed
+     * A snapshot of the node with key2 as its key if the values are swapped
+     */
+    public Entry<K> replace(K key1, K key2) {
+        if (key2 == null) {
+            Shard<K, V> shard = lock(key1, true);
+            try {
+                return snapshot(shard.tree.replace(key1, null));
+            } finally {
+                shard.writeLock.unlock();
+            }
+        }
+
+        while (true) {
+            List<Shard<K, V>> table = shards;
+            Shard<K, V> from = route(table, key1);
+            Shard<K, V> to = route(table, key2);
+
+            Shard<K, V> first = from.id <= to.id ? from : to;
+            Shard<K, V> second = first == from ? to : from;
+            first.writeLock.lock();
+            if (second != first) {
+                second.writeLock.lock();
+            }
+
+            try {
+                if (first.retired || second.retired) {
+                    continue;
+                }
+                if (from == to) {
+                    return snapshot(from.tree.replace(key1, key2));
+                }
+
+                AvlNode<K, V> node = from.tree.find(key1).getNode();
+                if (node == null) {
+                    return null;
+                }
+                V value = node.getValue();
+                from.tree.remove(key1);
+                to.tree.remove(key2);
+                value.setValue(key2);
+                to.tree.insert(key2, value);
+                return snapshot(to.tree.find(key2).getNode());
+            } finally {
+                if (second != first) {
+                    second.writeLock.unlock();
+                }
+                first.writeLock.unlock();
+                if (!first.retired && !second.retired) {
+                    afterWrite(first);
+                    if (second != first) {
+                        afterWrite(second);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of nodes in all the shards
+     */
+    public int size() {
+        int size = 0;
+        for (int shardSize : fanOut(null, null, AvlTreeMap::size)) {
+            size += shardSize;
+        }
+        return size;
+    }
+
+    /**
+     * @return True if no shard has nodes
+     */
+    public boolean isEmpty() {
+        for (boolean empty : fanOut(null, null, AvlTreeMap::isEmpty)) {
+            if (!empty) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The height of the tallest shard, -1 if all of them are empty
+     */
+    public int getHeight() {
+        int height = -1;
+        for (int shardHeight : fanOut(null, null, AvlTreeMap::getHeight)) {
+            height = Math.max(height, shardHeight);
+        }
+        return height;
+    }
+
+    /**
+     * @return The current number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the nodes whose keys are between lo and hi (inclusive) in sorted order
+     *
+     * @param lo The smallest key allowed, null for no lower bound
+     * @param hi The largest key allowed, null for no upper bound
+     * @return A list with snapshots of the nodes in the range
+     */
+    public List<Entry<K>> range(K lo, K hi) {
+        List<Entry<K>> result = new ArrayList<>();
+        for (List<Entry<K>> entries : fanOut(lo, hi, tree -> snapshot(tree.range(lo, hi)))) {
+            result.addAll(entries);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the k nodes with the most occurrences, the most frequent first
+     *
+     * @param k The number of nodes wanted
+     * @return A list with snapshots of at most k nodes
+     */
+    public List<Entry<K>> topK(int k) {
+        return mergeTopK(k, fanOut(null, null, tree -> snapshot(tree.topK(k))));
+    }
+
+    /**
+     * Returns the k nodes with the most occurrences whose keys are between lo and hi (inclusive),
+     * the most frequent first
+     *
+     * @param k  The number of nodes wanted
+     * @param lo The smallest key allowed
+     * @param hi The largest key allowed
+     * @return A list with snapshots of at most k nodes
+     */
+    public List<Entry<K>> topK(int k, K lo, K hi) {
+        return mergeTopK(k, fanOut(lo, hi, tree -> snapshot(tree.topK(k, lo, hi))));
+    }
+
+    /**
+     * Stops the threads used to query the shards in parallel
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Merges the topK results of every shard
+     *
+     * @param k       The number of nodes wanted
+     * @param results Snapshots of the k most frequent nodes of each shard
+     * @return Snapshots of the k most frequent nodes among all shards
+     */
+    private List<Entry<K>> mergeTopK(int k, List<List<Entry<K>>> results) {
+        List<Entry<K>> merged = new ArrayList<>();
+        for (List<Entry<K>> entries : results) {
+            merged.addAll(entries);
+        }
+        merged.sort(Comparator.comparingInt((Entry<K> entry) -> entry.getCount()).reversed());
+        return merged.size() > k ? new ArrayList<>(merged.subList(0, k)) : merged;
+    }
+
+    /**
+     * Must be called while holding the lock of the shard of the node
+     *
+     * @param node A node of a shard, may be null
+     * @return A snapshot of the key and count of the node, null if the node is null
+     */
+    private static <K extends Comparable<K>, V extends NodeData> Entry<K> snapshot(AvlNode<K, V> node) {
+        if (node == null) {
+            return null;
+        }
+        return new Entry<>(node.getKey(), node.getValue() == null ? 0 : node.getValue().getCount());
+    }
+
+    /**
+     * Must be called while holding the lock of the shard of the nodes
+     *
+     * @param nodes Nodes of a shard
+     * @return Snapshots of the nodes in the same order
+     */
+    private static <K extends Comparable<K>, V extends NodeData> List<Entry<K>> snapshot(List<AvlNode<K, V>> nodes) {
+        List<Entry<K>> entries = new ArrayList<>(nodes.size());
+        for (AvlNode<K, V> node : nodes) {
+            entries.add(snapshot(node));
+        }
+        return entries;
+    }
+
+    /**
+     * Runs a read only task on every shard overlapping a range in parallel
+     *
+     * @param lo   The smallest key of the range, null for no lower bound
+     * @param hi   The largest key of the range, null for no upper bound
+     * @param task The task to run on the tree of each shard while holding its read lock
+     * @param <R>  The type of the result of the task
+     * @return The results of each shard in key order
+     */
+    private <R> List<R> fanOut(K lo, K hi, Function<AvlTreeMap<K, V>, R> task) {
+        while (true) {
+            List<Shard<K, V>> table = shards;
+            List<Shard<K, V>> targets = new ArrayList<>();
+            for (int i = 0; i < table.size(); i++) {
+                K low = table.get(i).low;
+                K next = i + 1 < table.size() ? table.get(i + 1).low : null;
+                boolean startsBeforeHi = hi == null || low == null || low.compareTo(hi) <= 0;
+                boolean endsAfterLo = lo == null || next == null || next.compareTo(lo) > 0;
+                if (startsBeforeHi && endsAfterLo) {
+                    targets.add(table.get(i));
+                }
+            }
+
+            List<Future<R>> futures = new ArrayList<>();
+            for (Shard<K, V> shard : targets) {
+                futures.add(executor.submit(() -> {
+                    shard.readLock.lock();
+                    try {
+                        // A retired shard is not updated anymore, its result is discarded below
+                        return shard.retired ? null : task.apply(shard.tree);
+                    } finally {
+                        shard.readLock.unlock();
+                    }
+                }));
+            }
+
+            List<R> results = new ArrayList<>();
+            boolean retired = false;
+            for (int i = 0; i < futures.size(); i++) {
+                R result = get(futures.get(i));
+                retired |= result == null && targets.get(i).retired;
+                results.add(result);
+            }
+            if (!retired) {
+                return results;
+            }
+        }
+    }
+
+    /**
+     * Waits for the result of a task sent to a shard
+     *
+     * @param future The future of the task
+     * @param <R>    The type of the result
+     * @return The result of the task
+     */
+    private static <R> R get(Future<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a shard", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Shard query failed", ex.getCause());
+        }
+    }
+
+    /**
+     * Finds the shard owning a key and locks it, routing again if the shard was retired meanwhile
+     *
+     * @param key   The key to be routed
+     * @param write True for the write lock, false for the read lock
+     * @return The locked shard
+     */
+    private Shard<K, V> lock(K key, boolean write) {
+        while (true) {
+            Shard<K, V> shard = route(shards, key);
+            Lock lock = write ? shard.writeLock : shard.readLock;
+            lock.lock();
+            if (!shard.retired) {
+                return shard;
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Binary search for the last shard whose lowest key is not larger than key
+     *
+     * @param table The table of shards
+     * @param key   The key to be routed
+     * @return The shard owning the key
+     */
+    private Shard<K, V> route(List<Shard<K, V>> table, K key) {
+        int lo = 0;
+        int hi = table.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (table.get(mid).low.compareTo(key) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return table.get(lo);
+    }
+
+    /**
+     * Counts a write to a shard and splits it when it got hot
+     *
+     * @param shard The shard that was written to
+     */
+    private void afterWrite(Shard<K, V> shard) {
+        if (shard.recordWrite(System.nanoTime(), splitRate)) {
+            rebalance(shard);
+        }
+    }
+
+    /**
+     * Merges the coldest pair of neighbouring shards if it is cold enough and splits a hot shard
+     *
+     * @param hot The shard whose rate of writes went over the split rate
+     */
+    private void rebalance(Shard<K, V> hot) {
+        synchronized (splitLock) {
+            if (hot.retired) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            List<Shard<K, V>> table = shards;
+            int coldest = -1;
+            double coldestRate = Double.MAX_VALUE;
+            for (int i = 0; i + 1 < table.size(); i++) {
+                if (table.get(i) != hot && table.get(i + 1) != hot) {
+                    double rate = table.get(i).rate(now) + table.get(i + 1).rate(now);
+                    if (rate < coldestRate) {
+                        coldest = i;
+                        coldestRate = rate;
+                    }
+                }
+            }
+            boolean full = table.size() >= maxShards;
+            if (coldest != -1 && (coldestRate < splitRate / 4 || (full && coldestRate < hot.rate(now) / 2))) {
+                merge(table.get(coldest), table.get(coldest + 1), now);
+            }
+
+            if (shards.size() >= maxShards || !split(hot, now)) {
+                hot.postpone(now + HALF_LIFE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Splits a shard at its median key into two new shards, each taking half of its rate of writes.
+     * Must be called while holding the split lock.
+     *
+     * @param shard The shard to be split
+     * @param now   The current time in nanoseconds
+     * @return True if the shard was split, false if it has less than two nodes
+     */
+    private boolean split(Shard<K, V> shard, long now) {
+        shard.writeLock.lock();
+        try {
+            List<AvlNode<K, V>> nodes = shard.tree.range(null, null);
+            if (nodes.size() < 2) {
+                return false;
+            }
+
+            int median = nodes.size() / 2;
+            Shard<K, V> left = new Shard<>(nextShardId++, shard.low);
+            Shard<K, V> right = new Shard<>(nextShardId++, nodes.get(median).getKey());
+            for (int i = 0; i < nodes.size(); i++) {
+                AvlNode<K, V> node = nodes.get(i);
+                (i < median ? left : right).tree.insert(node.getKey(), node.getValue());
+            }
+            double heat = shard.heat(now) / 2;
+            left.setHeat(heat, now);
+            right.setHeat(heat, now);
+
+            List<Shard<K, V>> table = new ArrayList<>(shards);
+            int index = table.indexOf(shard);
+            table.set(index, left);
+            table.add(index + 1, right);
+            shards = Collections.unmodifiableList(table);
+            shard.retired = true;
+            return true;
+        } finally {
+            shard.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Merges two neighbouring shards into a new shard taking the rates of writes of both.
+     * Must be called while holding the split lock.
+     *
+     * @param left  The shard with the lower keys
+     * @param right The shard right after left
+     * @param now   The current time in nanoseconds
+     */
+    private void merge(Shard<K, V> left, Shard<K, V> right, long now) {
+        Shard<K, V> first = left.id <= right.id ? left : right;
+        Shard<K, V> second = first == left ? right : left;
+        first.writeLock.lock();
+        second.writeLock.lock();
+        try {
+            Shard<K, V> merged = new Shard<>(nextShardId++, left.low);
+            for (AvlNode<K, V> node : left.tree.range(null, null)) {
+                merged.tree.insert(node.getKey(), node.getValue());
+            }
+            for (AvlNode<K, V> node : right.tree.range(null, null)) {
+                merged.tree.insert(node.getKey(), node.getValue());
+            }
+            merged.setHeat(left.heat(now) + right.heat(now), now);
+
+            List<Shard<K, V>> table = new ArrayList<>(shards);
+            int index = table.indexOf(left);
+            table.set(index, merged);
+            table.remove(index + 1);
+            shards = Collections.unmodifiableList(table);
+            left.retired = true;
+            right.retired = true;
+        } finally {
+            second.writeLock.unlock();
+            first.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Snapshot of the key and the number of occurrences of a node, taken while its shard was locked
+     *
+     * @param <K> Key
+     */
+    public static class Entry<K> {
+        private final K key;
+        private final int count;
+
+        Entry(K key, int count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        /**
+         * @return The key of the node, null if the node was removed by a replace
+         */
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * @return The number of occurrences of the node when the snapshot was taken
+         */
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + count;
+        }
+    }
+
+    /**
+     * A range partition of the key space: every key from low (inclusive) to the low of the next shard
+     */
+    private static class Shard<K extends Comparable<K>, V extends NodeData> {
+        final long id;  // Creation order of the shard, used to lock two shards always in the same order
+        final K low;    // The lowest key of this shard, null for the first shard
+        final AvlTreeMap<K, V> tree = new AvlTreeMap<>();
+        final Lock readLock;
+        final Lock writeLock;
+        volatile boolean retired;
+        private double heat;          // Writes decayed by half every HALF_LIFE_NANOS, guarded by this
+        private long heatTime;        // The time heat was last decayed at, guarded by this
+        private long nextSplitCheck;  // The time before which this shard is not split, guarded by this
+
+        Shard(long id, K low) {
+            this.id = id;
+            this.low = low;
+            ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            this.readLock = lock.readLock();
+            this.writeLock = lock.writeLock();
+            this.heatTime = System.nanoTime();
+            this.nextSplitCheck = heatTime;
+        }
+
+        /**
+         * Counts a write to this shard
+         *
+         * @param now       The current time in nanoseconds
+         * @param splitRate The number of writes per second above which a shard is split
+         * @return True if the rate of writes went over the split rate and this shard should be split
+         */
+        synchronized boolean recordWrite(long now, double splitRate) {
+            heat = heat(now) + 1;
+            return now - nextSplitCheck >= 0 && rate(now) >= splitRate;
+        }
+
+        /**
+         * @param now The current time in nanoseconds
+         * @return The writes to this shard decayed to now
+         */
+        synchronized double heat(long now) {
+            if (now - heatTime > 0) {
+                heat *= Math.exp(-(now - heatTime) * DECAY_PER_NANO);
+                heatTime = now;
+            }
+            return heat;
+        }
+
+        /**
+         * @param now The current time in nanoseconds
+         * @return The writes per second this shard is receiving
+         */
+        synchronized double rate(long now) {
+            // A steady rate of r writes per nanosecond decays to a heat of r / DECAY_PER_NANO
+            return heat(now) * DECAY_PER_NANO * 1e9;
+        }
+
+        /**
+         * @param heat The writes of this shard decayed to now
+         * @param now  The current time in nanoseconds
+         */
+        synchronized void setHeat(double heat, long now) {
+            this.heat = heat;
+            this.heatTime = now;
+        }
+
+        /**
+         * @param until The time before which this shard is not split
+         */
+        synchronized void postpone(long until) {
+            nextSplitCheck = until;
+        }
+    }
+}
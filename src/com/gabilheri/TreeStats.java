@@ -0,0 +1,151 @@
+package com.gabilheri;
+
+import java.util.TreeMap;
+
+/**
+ * Structural and memory statistics of an {@link AvlTreeMap}, computed by {@link AvlTreeMap#stats()}.
+ * <p>
+ * Byte counts are estimates of the retained heap of the tree for a 64 bit JVM with compressed references:
+ * 12 byte object headers, 16 byte array headers, 4 byte references and every object aligned to 8 bytes.
+ * Lists are assumed to have grown by ArrayList's default policy and keys shared with their NodeData are only
+ * counted once.
+ */
+public class TreeStats {
+
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    /**
+     * Java 9 and later store Strings with only Latin-1 characters with one byte per character
+     */
+    static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+
+    int nodes;                  // Number of nodes in the tree
+    long occurrences;           // Sum of the occurrence counts of all nodes
+    int height;                 // Height of the tree, -1 if empty
+    long totalDepth;            // Sum of the depths of all nodes, the root has depth 0
+    long nodeBytes;             // Estimated bytes of the AvlNode objects
+    long dataBytes;             // Estimated bytes of the NodeData objects
+    long occurrenceBytes;       // Estimated bytes of the occurrence lists and their contents
+    long keyBytes;              // Estimated bytes of the keys
+    TreeMap<Integer, Integer> balanceFactors = new TreeMap<>(); // Height of left minus right -> number of nodes
+
+    /**
+     * @param bytes The size of an object
+     * @return The size rounded up to the 8 byte alignment of objects
+     */
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * @param key A key of the tree
+     * @return The estimated bytes retained by the key
+     */
+    static long estimateKey(Object key) {
+        if (key instanceof String) {
+            String string = (String) key;
+            boolean latin1 = COMPACT_STRINGS;
+            for (int i = 0; latin1 && i < string.length(); i++) {
+                latin1 = string.charAt(i) < 256;
+            }
+            long chars = latin1 ? string.length() : 2L * string.length();
+            return align(OBJECT_HEADER + REFERENCE + 8) + align(ARRAY_HEADER + chars);
+        }
+        // Boxed numbers and other small keys
+        return key == null ? 0 : align(OBJECT_HEADER + 8);
+    }
+
+    /**
+     * @return Number of nodes in the tree
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return Sum of the occurrence counts of all nodes
+     */
+    public long getOccurrences() {
+        return occurrences;
+    }
+
+    /**
+     * @return Height of the tree, -1 if empty
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The smallest height possible for a binary search tree with this number of nodes
+     */
+    public int getOptimalHeight() {
+        return nodes == 0 ? -1 : 31 - Integer.numberOfLeadingZeros(nodes);
+    }
+
+    /**
+     * @return Average depth of the nodes, which is the number of comparisons find reports for them
+     */
+    public double getAverageDepth() {
+        return nodes == 0 ? 0 : (double) totalDepth / nodes;
+    }
+
+    /**
+     * @return Number of nodes for every balance factor (height of left minus height of right)
+     */
+    public TreeMap<Integer, Integer> getBalanceFactors() {
+        return balanceFactors;
+    }
+
+    /**
+     * @return Estimated bytes of the AvlNode objects
+     */
+    public long getNodeBytes() {
+        return nodeBytes;
+    }
+
+    /**
+     * @return Estimated bytes of the NodeData objects
+     */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * @return Estimated bytes of the occurrence lists and their contents
+     */
+    public long getOccurrenceBytes() {
+        return occurrenceBytes;
+    }
+
+    /**
+     * @return Estimated bytes of the keys
+     */
+    public long getKeyBytes() {
+        return keyBytes;
+    }
+
+    /**
+     * @return Estimated bytes retained by the whole tree
+     */
+    public long getTotalBytes() {
+        return nodeBytes + dataBytes + occurrenceBytes + keyBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "nodes=" + nodes +
+                ", occurrences=" + occurrences +
+                ", height=" + height +
+                ", optimalHeight=" + getOptimalHeight() +
+                ", averageDepth=" + String.format("%.2f", getAverageDepth()) +
+                ", balanceFactors=" + balanceFactors +
+                ", bytes=" + getTotalBytes() +
+                " (nodes=" + nodeBytes +
+                ", data=" + dataBytes +
+                ", occurrences=" + occurrenceBytes +
+                ", keys=" + keyBytes + ")";
+    }
+}